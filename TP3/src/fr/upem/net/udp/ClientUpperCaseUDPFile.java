@@ -32,11 +32,11 @@ public class ClientUpperCaseUDPFile {
         private static final Logger logger = Logger.getLogger(ClientUpperCaseUDPFile.class.getName());
 
         private static void usage() {
-            System.out.println("Usage : ClientUpperCaseUDPFile in-filename out-filename timeout host port ");
+            System.out.println("Usage : ClientUpperCaseUDPFile in-filename out-filename timeout host port [-mapped]");
         }
 
         public static void main(String[] args) throws IOException, InterruptedException {
-            if (args.length !=5) {
+            if (args.length != 5 && ! (args.length == 6 && args[5].equals("-mapped"))) {
                 usage();
                 return;
             }
@@ -74,6 +74,12 @@ public class ClientUpperCaseUDPFile {
             listener.start();
 
             // ---- Consumer thread : Send lines to the server and poll answers from the queue -------------------------
+            if (args.length == 6) {
+                sendMapped(dc, server, queue, inFilename, outFilename, timeout);
+                dc.close();
+                listener.interrupt();
+                return;
+            }
             //Read all lines of inFilename opened in UTF-8
             List<String> lines= Files.readAllLines(Paths.get(inFilename), UTF8);
             ArrayList<String> upperCaseLines = new ArrayList<>();
@@ -98,4 +104,30 @@ public class ClientUpperCaseUDPFile {
             dc.close();
             listener.interrupt();
         }
+
+        /**
+         * Streaming version of the consumer : the lines are sent from a mapping of the input file
+         * and the upper-cased lines are written at their offsets in a mapping of the output file
+         */
+        private static void sendMapped(DatagramChannel dc, SocketAddress server, BlockingQueue<String> queue,
+                                       String inFilename, String outFilename, int timeout)
+                throws IOException, InterruptedException {
+            ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            try (MappedLines mappedLines = new MappedLines(Paths.get(inFilename), Paths.get(outFilename))) {
+                logger.info("Start sending " + mappedLines.count() + " lines for upper-casing");
+                for (long id = 0; id < mappedLines.count(); id++) {
+                    buff.clear();
+                    mappedLines.get(id, buff);
+                    buff.flip();
+                    String upperCased;
+                    do {
+                        dc.send(buff, server);
+                        buff.rewind();
+                        upperCased = queue.poll(timeout, TimeUnit.MILLISECONDS);
+                    } while (upperCased == null);
+                    mappedLines.put(id, UTF8.encode(upperCased));
+                }
+            }
+            logger.info("Finished writing lines to file " + outFilename + ".\nExiting program");
+        }
     }
\ No newline at end of file
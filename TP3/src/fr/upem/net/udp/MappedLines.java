@@ -0,0 +1,239 @@
+package fr.upem.net.udp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Lines of an input file and their responses in an output file, both accessed through memory mappings.
+ * <p>
+ * The output starts as a copy of the input, and the response of each line is written at the offset of
+ * the line, so neither the lines nor the responses are kept on the heap. The offsets of the lines are
+ * stored in a mapped temporary index file. A response whose length differs from its line (upper-casing
+ * is not always length-preserving) is kept aside, and the output is rewritten once at close.
+ * Line terminators are LF, CRLF or a lone CR, as for Files.readAllLines.
+ */
+public class MappedLines implements Closeable {
+    private static final long SEGMENT_SIZE = 1L << 30;      // multiple of Long.BYTES
+
+    /**
+     * A file mapped in segments of at most SEGMENT_SIZE bytes
+     */
+    private static class Mapping {
+        private final MappedByteBuffer[] segments;
+
+        private Mapping(FileChannel fc, FileChannel.MapMode mode, long size) throws IOException {
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (var i = 0; i < segments.length; i++) {
+                var start = i * SEGMENT_SIZE;
+                segments[i] = fc.map(mode, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+
+        private byte get(long position) {
+            return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+        }
+
+        private long getLong(long position) {
+            return segments[(int) (position / SEGMENT_SIZE)].getLong((int) (position % SEGMENT_SIZE));
+        }
+
+        private void putLong(long position, long value) {
+            segments[(int) (position / SEGMENT_SIZE)].putLong((int) (position % SEGMENT_SIZE), value);
+        }
+
+        /**
+         * Copies length bytes starting at position into dst, advancing its position
+         */
+        private void get(long position, ByteBuffer dst, int length) {
+            while (length > 0) {
+                var segment = segments[(int) (position / SEGMENT_SIZE)];
+                var offset = (int) (position % SEGMENT_SIZE);
+                var n = Math.min(length, segment.limit() - offset);
+                dst.put(dst.position(), segment, offset, n);
+                dst.position(dst.position() + n);
+                position += n;
+                length -= n;
+            }
+        }
+
+        /**
+         * Copies the remaining bytes of src at position, advancing the position of src
+         */
+        private void put(long position, ByteBuffer src) {
+            while (src.hasRemaining()) {
+                var segment = segments[(int) (position / SEGMENT_SIZE)];
+                var offset = (int) (position % SEGMENT_SIZE);
+                var n = Math.min(src.remaining(), segment.limit() - offset);
+                segment.put(offset, src, src.position(), n);
+                src.position(src.position() + n);
+                position += n;
+            }
+        }
+
+        private void force() {
+            for (var segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    private final Path out;
+    private final long size;
+    private final long count;
+    private final Mapping input;
+    private final Mapping output;
+    private final Mapping index;        // start of line i at 8 * i, followed by the size of the file
+    private final HashMap<Long, byte[]> resized = new HashMap<>();
+
+    public MappedLines(Path in, Path out) throws IOException {
+        this.out = out;
+        Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+        try (var inChannel = FileChannel.open(in, READ);
+             var outChannel = FileChannel.open(out, READ, WRITE)) {
+            size = inChannel.size();
+            input = new Mapping(inChannel, FileChannel.MapMode.READ_ONLY, size);
+            output = new Mapping(outChannel, FileChannel.MapMode.READ_WRITE, size);
+        }
+        var lines = 0L;
+        for (var position = 0L; position < size; position++) {
+            if (endsLine(position) || position == size - 1) {
+                lines++;
+            }
+        }
+        count = lines;
+        var indexFile = Files.createTempFile("lines", ".index");
+        try (var indexChannel = FileChannel.open(indexFile, READ, WRITE, DELETE_ON_CLOSE)) {
+            index = new Mapping(indexChannel, FileChannel.MapMode.READ_WRITE, (count + 1) * Long.BYTES);
+        }
+        var id = 0L;
+        var lineStart = 0L;
+        for (var position = 0L; position < size; position++) {
+            if (endsLine(position)) {
+                index.putLong(id++ * Long.BYTES, lineStart);
+                lineStart = position + 1;
+            }
+        }
+        if (lineStart < size) {
+            index.putLong(id * Long.BYTES, lineStart);
+        }
+        index.putLong(count * Long.BYTES, size);
+    }
+
+    /**
+     * @return true if the byte at position is the last one of a line terminator
+     */
+    private boolean endsLine(long position) {
+        var b = input.get(position);
+        return b == '\n' || (b == '\r' && (position == size - 1 || input.get(position + 1) != '\n'));
+    }
+
+    /**
+     * @return the number of lines
+     */
+    public long count() {
+        return count;
+    }
+
+    private long start(long id) {
+        return index.getLong(id * Long.BYTES);
+    }
+
+    /**
+     * @return the number of bytes of line id, without its terminator
+     */
+    public int length(long id) {
+        var start = start(id);
+        var end = index.getLong((id + 1) * Long.BYTES);
+        if (end > start && input.get(end - 1) == '\n') {
+            end--;
+        }
+        if (end > start && input.get(end - 1) == '\r') {      // CRLF or lone CR
+            end--;
+        }
+        return (int) (end - start);
+    }
+
+    /**
+     * Copies the bytes of line id, without its terminator, into dst
+     */
+    public void get(long id, ByteBuffer dst) {
+        input.get(start(id), dst, length(id));
+    }
+
+    /**
+     * Writes the remaining bytes of src as the response to line id
+     */
+    public void put(long id, ByteBuffer src) {
+        if (src.remaining() == length(id)) {
+            output.put(start(id), src);
+            return;
+        }
+        var bytes = new byte[src.remaining()];
+        src.get(bytes);
+        resized.put(id, bytes);
+    }
+
+    /**
+     * Flushes the output, rewriting it if some responses did not have the length of their line
+     */
+    @Override
+    public void close() throws IOException {
+        output.force();
+        if (resized.isEmpty()) {
+            return;
+        }
+        var tmp = Files.createTempFile(out.toAbsolutePath().getParent(), "lines", ".tmp");
+        try (var fc = FileChannel.open(tmp, WRITE, TRUNCATE_EXISTING)) {
+            var buff = ByteBuffer.allocateDirect(64 * 1024);
+            for (var id = 0L; id < count; id++) {
+                var start = start(id);
+                var end = index.getLong((id + 1) * Long.BYTES);
+                var bytes = resized.get(id);
+                var from = start;
+                if (bytes != null) {
+                    write(fc, buff, ByteBuffer.wrap(bytes));
+                    from = start + length(id);    // keep the terminator
+                }
+                while (from < end) {
+                    if (! buff.hasRemaining()) {
+                        flush(fc, buff);
+                    }
+                    var n = (int) Math.min(end - from, buff.remaining());
+                    output.get(from, buff, n);
+                    from += n;
+                }
+            }
+            flush(fc, buff);
+        }
+        Files.move(tmp, out, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void write(FileChannel fc, ByteBuffer buff, ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (! buff.hasRemaining()) {
+                flush(fc, buff);
+            }
+            var n = Math.min(src.remaining(), buff.remaining());
+            buff.put(buff.position(), src, src.position(), n);
+            buff.position(buff.position() + n);
+            src.position(src.position() + n);
+        }
+    }
+
+    private static void flush(FileChannel fc, ByteBuffer buff) throws IOException {
+        buff.flip();
+        while (buff.hasRemaining()) {
+            fc.write(buff);
+        }
+        buff.clear();
+    }
+}
@@ -15,6 +15,8 @@ import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,6 +25,9 @@ public class ClientIdUpperCaseUDPBurst {
     private static Logger logger = Logger.getLogger(ClientIdUpperCaseUDPBurst.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
+    private static final int SENT = 0;
+    private static final int RECEIVED = 1;
+    private final EventCounters events = new EventCounters("sent", "received");
     private final List<String> lines;
     private final int nbLines;
     private final String[] upperCaseLines; //
@@ -31,12 +36,58 @@ public class ClientIdUpperCaseUDPBurst {
     private final InetSocketAddress serverAddress;
     private final DatagramChannel dc;
     private final SafeBitSet received;         // BitSet marking received requests
+    private final Pacer packetPacer;           // null when the number of packets per second is not limited
+    private final Pacer bytePacer;             // null when the number of bytes per second is not limited
+
+    /**
+     * Token bucket : tokens are credited at a fixed rate, up to a burst, and acquire parks
+     * the calling thread until enough tokens are available.
+     */
+    private static class Pacer {
+        private static final long BURST_MILLIS = 16;   // the bucket holds the tokens of 16 ms
+        private final double nanosPerToken;
+        private final long burstNanos;
+        private long nextFree;                         // time at which the bucket is empty, it is full before now - burstNanos
+
+        private Pacer(long tokensPerSecond) {
+            if (tokensPerSecond <= 0) {
+                throw new IllegalArgumentException("Rate must be positive");
+            }
+            nanosPerToken = 1e9 / tokensPerSecond;
+            burstNanos = TimeUnit.MILLISECONDS.toNanos(BURST_MILLIS);
+            nextFree = System.nanoTime();
+        }
+
+        /**
+         * Waits until tokens can be taken from the bucket
+         *
+         * @return false if the thread was interrupted while waiting
+         */
+        private boolean acquire(long tokens) {
+            var now = System.nanoTime();
+            nextFree = Math.max(nextFree, now - burstNanos) + (long) (tokens * nanosPerToken);
+            while (now < nextFree - burstNanos) {
+                LockSupport.parkNanos(nextFree - burstNanos - now);
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                now = System.nanoTime();
+            }
+            return true;
+        }
+    }
 
     private static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseUDPBurst in-filename out-filename timeout host port"
+                + " [-pps packets/s] [-bps bytes/s]");
     }
 
-    private ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress, String outFilename) throws IOException {
+    /**
+     * @param packetsPerSecond : maximum sending rate in datagrams, 0 for no limit
+     * @param bytesPerSecond : maximum sending rate in bytes of payload, 0 for no limit
+     */
+    private ClientIdUpperCaseUDPBurst(List<String> lines, int timeout, InetSocketAddress serverAddress, String outFilename,
+                                      long packetsPerSecond, long bytesPerSecond) throws IOException {
         this.lines = lines;
         this.nbLines = lines.size();
         this.timeout = timeout;
@@ -46,33 +97,50 @@ public class ClientIdUpperCaseUDPBurst {
         dc.bind(null);
         this.received = new SafeBitSet(nbLines);
         this.upperCaseLines = new String[nbLines];
+        this.packetPacer = packetsPerSecond > 0 ? new Pacer(packetsPerSecond) : null;
+        this.bytePacer = bytesPerSecond > 0 ? new Pacer(bytesPerSecond) : null;
     }
 
+    /**
+     * Sends the lines not answered yet, at the pace allowed by the pacers, then waits for the timeout
+     * before the next round. The thread parks instead of spinning between sends and between rounds.
+     */
     private void senderThreadRun() {
-        long lastSend = 0L;
         ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
+        var timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
         while (!Thread.interrupted()) {
-            long currentTime = System.currentTimeMillis();
-            if (currentTime - lastSend >= timeout) {
-                for (int i = 0; i < nbLines; ++i) {
-                    if (! received.get(i)) {
-                        buff.clear();
-                        buff.putLong(i);
-                        String data = lines.get(i);
-                        buff.put(UTF8.encode(data));
-                        try {
-                            buff.flip();
-                            dc.send(buff, serverAddress);
-                            lastSend = System.currentTimeMillis();
-                            logger.info(">>> Sent line with id " + i + " and msg :" + data);
-                        } catch (AsynchronousCloseException e) {
-                            logger.info("Sender Thread stopped");
-                        } catch (IOException e) {
-                            logger.severe("Unexpected stop of the sender thread");
-                        }
+            for (int i = (int) received.nextClearBit(0); i < nbLines; i = (int) received.nextClearBit(i + 1)) {
+                buff.clear();
+                buff.putLong(i);
+                String data = lines.get(i);
+                buff.put(UTF8.encode(data));
+                buff.flip();
+                if ((packetPacer != null && ! packetPacer.acquire(1))
+                        || (bytePacer != null && ! bytePacer.acquire(buff.remaining()))) {
+                    logger.info("Sender Thread stopped");
+                    return;
+                }
+                if (received.get(i)) {      // answered while the sender was waiting
+                    continue;
+                }
+                try {
+                    dc.send(buff, serverAddress);
+                    if (events.record(SENT)) {
+                        logger.info(">>> Sent line with id " + i + " and msg :" + data);
                     }
+                } catch (AsynchronousCloseException e) {
+                    logger.info("Sender Thread stopped");
+                    return;
+                } catch (IOException e) {
+                    logger.severe("Unexpected stop of the sender thread");
+                    return;
                 }
             }
+            var deadline = System.nanoTime() + timeoutNanos;
+            for (var now = System.nanoTime(); now < deadline && ! Thread.currentThread().isInterrupted();
+                 now = System.nanoTime()) {
+                LockSupport.parkNanos(deadline - now);
+            }
         }
     }
 
@@ -85,14 +153,20 @@ public class ClientIdUpperCaseUDPBurst {
             buff.clear();
             dc.receive(buff);
             buff.flip();
-            int id = (int) buff.getLong();
+            long id = buff.getLong();
+            if (id < 0 || id >= nbLines) {
+                continue;
+            }
             String msg = UTF8.decode(buff).toString();
-            System.out.println(">>> Received answer with id " + id + " and message : " + msg);
+            if (events.record(RECEIVED)) {
+                logger.info(">>> Received answer with id " + id + " and message : " + msg);
+            }
             received.set(id);
-            upperCaseLines[id] = msg;
+            upperCaseLines[(int) id] = msg;
         }
         dc.close();
         senderThread.interrupt();
+        logger.info("All lines received : " + events);
 
         Files.write(Paths.get(outFilename), Arrays.asList(upperCaseLines), UTF8,
                 StandardOpenOption.CREATE,
@@ -101,7 +175,7 @@ public class ClientIdUpperCaseUDPBurst {
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
+        if (args.length < 5) {
             usage();
             return;
         }
@@ -112,11 +186,25 @@ public class ClientIdUpperCaseUDPBurst {
         String host = args[3];
         int port = Integer.parseInt(args[4]);
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+        long packetsPerSecond = 0;
+        long bytesPerSecond = 0;
+        for (int i = 5; i < args.length; i++) {
+            if (args[i].equals("-pps") && i + 1 < args.length) {
+                packetsPerSecond = Long.parseLong(args[++i]);
+            } else if (args[i].equals("-bps") && i + 1 < args.length) {
+                bytesPerSecond = Long.parseLong(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
 
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
         //Create client with the parameters and launch it
-        ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, outFilename);
+        ClientIdUpperCaseUDPBurst client = new ClientIdUpperCaseUDPBurst(lines, timeout, serverAddress, outFilename,
+                packetsPerSecond, bytesPerSecond);
+        client.events.register(logger);
         client.launch();
     }
 }
@@ -1,49 +1,110 @@
 package fr.upem.net.udp;
 
-import java.util.BitSet;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
+/**
+ * Fixed-size thread-safe bit set, without locks : the bits are kept in an AtomicLongArray
+ * and updated by CAS, the number of bits set is maintained on each change.
+ * The cardinality is exact once the threads updating the set are quiescent.
+ */
 public class SafeBitSet {
-    private final static Object lock = new Object();
-    private final BitSet bitSet;
+    private final AtomicLongArray words;
+    private final AtomicLong cardinality = new AtomicLong();
+    private final long size;
 
-    public SafeBitSet(int size) {
+    public SafeBitSet(long size) {
         if (size <= 0) {
             throw new IllegalArgumentException("Size must be greater than 0");
         }
-        bitSet = new BitSet(size);
+        var nbWords = (size + Long.SIZE - 1) / Long.SIZE;
+        if (nbWords > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Size is too large : " + size);
+        }
+        this.size = size;
+        words = new AtomicLongArray((int) nbWords);
     }
 
     /**
      * Set the bit at the specified index to true
      * @param index of the bit to set
+     * @return true if the bit was not already set
      */
-    public void set(int index) {
-        synchronized (lock) {
-            bitSet.set(index);
+    public boolean set(long index) {
+        Objects.checkIndex(index, size);
+        var word = (int) (index >>> 6);
+        var mask = 1L << index;
+        var old = words.get(word);
+        while ((old & mask) == 0) {
+            var witness = words.compareAndExchange(word, old, old | mask);
+            if (witness == old) {
+                cardinality.incrementAndGet();
+                return true;
+            }
+            old = witness;
         }
+        return false;
     }
 
-    public boolean get(int index) {
-        synchronized (lock) {
-            return bitSet.get(index);
-        }
+    public boolean get(long index) {
+        Objects.checkIndex(index, size);
+        return (words.get((int) (index >>> 6)) & (1L << index)) != 0;
     }
+
     /**
      * Set the bit at the specified index to false
      * @param index of the bit to set
+     * @return true if the bit was set
      */
-    public void clear(int index) {
-        synchronized (lock) {
-            bitSet.clear(index);
+    public boolean clear(long index) {
+        Objects.checkIndex(index, size);
+        var word = (int) (index >>> 6);
+        var mask = 1L << index;
+        var old = words.get(word);
+        while ((old & mask) != 0) {
+            var witness = words.compareAndExchange(word, old, old & ~mask);
+            if (witness == old) {
+                cardinality.decrementAndGet();
+                return true;
+            }
+            old = witness;
         }
+        return false;
     }
 
     /**
-     * @return the number of bytes set to true in the set
+     * @return the index of the first bit set to false at or after from, size() if there is none
      */
-    public int getCardinality() {
-        synchronized (lock) {
-            return bitSet.cardinality();
+    public long nextClearBit(long from) {
+        if (from < 0) {
+            throw new IndexOutOfBoundsException("from < 0: " + from);
+        }
+        if (from >= size) {
+            return size;
         }
+        var word = (int) (from >>> 6);
+        var clear = ~words.get(word) & (-1L << from);
+        while (clear == 0) {
+            if (++word == words.length()) {
+                return size;
+            }
+            clear = ~words.get(word);
+        }
+        return Math.min((long) word * Long.SIZE + Long.numberOfTrailingZeros(clear), size);
+    }
+
+    /**
+     * @return the number of bits set to true in the set
+     */
+    public long getCardinality() {
+        return cardinality.get();
+    }
+
+    /**
+     * @return the number of bits of the set
+     */
+    public long size() {
+        return size;
     }
 }
@@ -0,0 +1,138 @@
+package fr.upem.net.udp;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counters of the events of a datagram loop, with a sampled log of these events.
+ * <p>
+ * Each thread counts its events in its own padded array, so counting does not allocate, needs no atomic
+ * instruction, and the threads of a multi-threaded loop do not invalidate each other's cache lines.
+ * The counts of the threads are summed when they are read. The caller builds and logs its message only
+ * when record returns true, that is for one event out of sampling of each type recorded by a thread,
+ * and never when sampling is 0 (the default).
+ * The sampling is read from the system property fr.upem.net.udp.logSampling at creation and can be
+ * changed at runtime with setSampling, or from jconsole through the MBean registered by register.
+ */
+public class EventCounters {
+    public static final String SAMPLING_PROPERTY = "fr.upem.net.udp.logSampling";
+    private static final int PADDING = 16;     // longs around the counters of a thread : 128 bytes
+    private static final VarHandle COUNT = MethodHandles.arrayElementVarHandle(long[].class);
+
+    /**
+     * Management interface of the counters
+     */
+    public interface Control {
+        long getSampling();
+
+        void setSampling(long sampling);
+
+        String getCounts();
+    }
+
+    private final String[] names;
+    private final CopyOnWriteArrayList<long[]> counts = new CopyOnWriteArrayList<>();    // one per thread
+    private final ThreadLocal<long[]> localCounts = ThreadLocal.withInitial(this::newCounts);
+    private volatile long sampling;
+
+    /**
+     * @param names : the names of the events, the event i being recorded with record(i)
+     */
+    public EventCounters(String... names) {
+        this.names = names.clone();
+        setSampling(Long.getLong(SAMPLING_PROPERTY, 0));
+    }
+
+    /**
+     * @return the counters of the calling thread, event i at PADDING + i
+     */
+    private long[] newCounts() {
+        var threadCounts = new long[names.length + 2 * PADDING];
+        counts.add(threadCounts);
+        return threadCounts;
+    }
+
+    /**
+     * Counts an occurrence of event
+     * @return true if this occurrence should be logged
+     */
+    public boolean record(int event) {
+        var threadCounts = localCounts.get();
+        var index = PADDING + event;
+        var count = threadCounts[index] + 1;            // only written by this thread
+        COUNT.setOpaque(threadCounts, index, count);    // read by count from other threads
+        var sampling = this.sampling;
+        return sampling != 0 && count % sampling == 0;
+    }
+
+    public long count(int event) {
+        var count = 0L;
+        for (var threadCounts : counts) {
+            count += (long) COUNT.getOpaque(threadCounts, PADDING + event);
+        }
+        return count;
+    }
+
+    public long getSampling() {
+        return sampling;
+    }
+
+    /**
+     * @param sampling : 0 to log no event, n to log one event out of n of each type
+     */
+    public void setSampling(long sampling) {
+        if (sampling < 0) {
+            throw new IllegalArgumentException("Sampling must be positive or 0");
+        }
+        this.sampling = sampling;
+    }
+
+    /**
+     * Registers the counters in the platform MBean server under the name of logger,
+     * so that the sampling can be changed while the program runs
+     */
+    public void register(Logger logger) {
+        Objects.requireNonNull(logger);
+        var control = new Control() {
+            @Override
+            public long getSampling() {
+                return sampling;
+            }
+
+            @Override
+            public void setSampling(long sampling) {
+                EventCounters.this.setSampling(sampling);
+            }
+
+            @Override
+            public String getCounts() {
+                return EventCounters.this.toString();
+            }
+        };
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(control, Control.class),
+                    new ObjectName("fr.upem.net.udp:type=EventCounters,name=" + logger.getName()));
+        } catch (JMException e) {
+            logger.warning("Could not register the event counters : " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        var builder = new StringBuilder();
+        for (var i = 0; i < names.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(names[i]).append(" = ").append(count(i));
+        }
+        return builder.toString();
+    }
+}
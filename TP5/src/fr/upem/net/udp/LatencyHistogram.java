@@ -0,0 +1,94 @@
+package fr.upem.net.udp;
+
+/**
+ * Histogram of positive long values (latencies in nanoseconds) with a bounded relative error, in the
+ * manner of HdrHistogram.
+ * <p>
+ * Values below 2 * SUB_BUCKETS are counted exactly. Above, each power of two is split in SUB_BUCKETS
+ * buckets, so a value is known within 1 / SUB_BUCKETS of itself (1.6 %) whatever its magnitude, with a
+ * fixed array of counts. Recording does not allocate. Not thread-safe, each thread records in its own
+ * histogram and they are merged with add.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int NB_BUCKETS = 2 * SUB_BUCKETS + (Long.SIZE - 2 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NB_BUCKETS];
+    private long count;
+    private long max;
+    private double sum;
+
+    private static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        var shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;   // value >>> shift in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value counted in the bucket index
+     */
+    private static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        var shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        var subBucket = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1L) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must be positive or 0");
+        }
+        counts[index(value)]++;
+        count++;
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    /**
+     * Adds the values of other to this histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (var i = 0; i < NB_BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile : between 0 and 100
+     * @return a value such that percentile % of the recorded values are lower or equal, 0 if there is none
+     */
+    public long valueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        var seen = 0L;
+        for (var i = 0; i < NB_BUCKETS && count > 0; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return 0;
+    }
+}
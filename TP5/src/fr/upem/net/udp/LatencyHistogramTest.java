@@ -0,0 +1,115 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class LatencyHistogram
+ */
+public class LatencyHistogramTest {
+
+    /**
+     * @return the value such that percentile % of the sorted values are lower or equal
+     */
+    private static long exactPercentile(long[] sorted, double percentile) {
+        var rank = Math.max(1, (long) Math.ceil(percentile / 100 * sorted.length));
+        return sorted[(int) rank - 1];
+    }
+
+    @Test
+    public void testEmpty() {
+        var histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.valueAtPercentile(50));
+        assertEquals(0, histogram.valueAtPercentile(100));
+        assertEquals(0.0, histogram.mean());
+    }
+
+    /**
+     * Small values are counted exactly
+     */
+    @Test
+    public void testSmallValuesAreExact() {
+        var histogram = new LatencyHistogram();
+        for (var value = 1; value <= 100; value++) {
+            histogram.record(value);
+        }
+        assertEquals(100, histogram.count());
+        assertEquals(1, histogram.valueAtPercentile(0));
+        assertEquals(1, histogram.valueAtPercentile(1));
+        assertEquals(50, histogram.valueAtPercentile(50));
+        assertEquals(99, histogram.valueAtPercentile(99));
+        assertEquals(100, histogram.valueAtPercentile(100));
+        assertEquals(50.5, histogram.mean());
+        assertEquals(100, histogram.max());
+    }
+
+    /**
+     * Whatever their magnitude, percentiles are never below the exact value, and above it by at most 1 / 64
+     */
+    @Test
+    public void testRelativeError() {
+        var random = new Random(0);
+        var values = new long[100_000];
+        var histogram = new LatencyHistogram();
+        for (var i = 0; i < values.length; i++) {
+            values[i] = (long) Math.pow(10, 12 * random.nextDouble());     // from 1 ns to 1000 s
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (var percentile : new double[] { 0, 1, 10, 25, 50, 75, 90, 99, 99.9, 99.99, 100 }) {
+            var exact = exactPercentile(values, percentile);
+            var value = histogram.valueAtPercentile(percentile);
+            assertTrue(value >= exact, "p" + percentile + " : " + value + " < " + exact);
+            assertTrue(value - exact <= exact / 64, "p" + percentile + " : " + value + " too far from " + exact);
+        }
+        assertEquals(values[values.length - 1], histogram.valueAtPercentile(100));
+    }
+
+    /**
+     * A value is never reported above the largest value recorded
+     */
+    @Test
+    public void testBoundedByMax() {
+        var histogram = new LatencyHistogram();
+        histogram.record(1_000_001);
+        assertEquals(1_000_001, histogram.valueAtPercentile(50));
+        assertEquals(1_000_001, histogram.max());
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.valueAtPercentile(100));
+    }
+
+    @Test
+    public void testAddIsLikeRecordingBoth() {
+        var random = new Random(1);
+        var first = new LatencyHistogram();
+        var second = new LatencyHistogram();
+        var both = new LatencyHistogram();
+        for (var i = 0; i < 10_000; i++) {
+            var value = random.nextInt(1_000_000_000);
+            (i % 3 == 0 ? first : second).record(value);
+            both.record(value);
+        }
+        first.add(second);
+        assertEquals(both.count(), first.count());
+        assertEquals(both.max(), first.max());
+        assertTrue(Math.abs(both.mean() - first.mean()) <= 1e-9 * both.mean());
+        for (var percentile = 0; percentile <= 100; percentile++) {
+            assertEquals(both.valueAtPercentile(percentile), first.valueAtPercentile(percentile));
+        }
+    }
+
+    @Test
+    public void testRefusesOutOfRange() {
+        var histogram = new LatencyHistogram();
+        assertThrows(IllegalArgumentException.class, () -> histogram.record(-1));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtPercentile(-0.1));
+        assertThrows(IllegalArgumentException.class, () -> histogram.valueAtPercentile(100.1));
+    }
+}
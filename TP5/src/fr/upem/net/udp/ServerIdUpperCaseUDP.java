@@ -1,79 +1,297 @@
 package fr.upem.net.udp;
 
-import java.nio.channels.AsynchronousCloseException;
-import java.nio.charset.StandardCharsets;
-import java.util.concurrent.locks.AbstractOwnableSynchronizer;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Server answering ID + text with ID + the text in upper case.
+ * <p>
+ * Each worker thread runs its own selector. When the platform supports SO_REUSEPORT, each worker has
+ * its own nonblocking channel bound to the port and the kernel spreads the clients over them, otherwise
+ * the workers share one channel. A worker drains its channel at each wakeup and answers from the buffer
+ * it received into : ASCII text is upper-cased in place, only a text with non-ASCII bytes is decoded.
+ * The number of datagrams per second is logged every REPORT_PERIOD_MILLIS while there is traffic.
+ */
 public class ServerIdUpperCaseUDP {
 
 	private static final Logger logger = Logger.getLogger(ServerIdUpperCaseUDP.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
 	private static final int BUFFER_SIZE = 1024;
-    private final DatagramChannel dc;
-    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private static final int MAX_EXPANSION = 3;     // upper-casing multiplies the UTF-8 size by at most 3
+    private static final int MAX_BATCH = 64;        // datagrams drained per wakeup before the other channels
+    private static final long REPORT_PERIOD_MILLIS = 1_000;
+    private static final int RECEIVED = 0;
+    private static final int IGNORED = 1;
+    private static final int DECODED = 2;
+    private final EventCounters events = new EventCounters("received", "ignored", "decoded");
+    private final DatagramChannel[] channels;       // one per worker, or a single one shared by all
+    private final int nbThreads;
+
+    /**
+     * State of a worker, allocated once
+     */
+    private static final class WorkerContext {
+        private final DatagramChannel dc;
+        private final ByteBuffer buff = ByteBuffer.allocateDirect(MAX_EXPANSION * BUFFER_SIZE);
+        private InetSocketAddress exp;      // destination of the response in buff, null if none is pending
+
+        private WorkerContext(DatagramChannel dc) {
+            this.dc = dc;
+        }
+    }
 
     public ServerIdUpperCaseUDP(int port) throws IOException {
-        dc = DatagramChannel.open();
-        dc.bind(new InetSocketAddress(port));
-        logger.info("ServerBetterUpperCaseUDP started on port " + port);
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nbThreads : number of worker threads receiving and answering the datagrams
+     */
+    public ServerIdUpperCaseUDP(int port, int nbThreads) throws IOException {
+        if (nbThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be strictly positive");
+        }
+        this.nbThreads = nbThreads;
+        var first = DatagramChannel.open();
+        var reusePort = nbThreads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        channels = new DatagramChannel[reusePort ? nbThreads : 1];
+        channels[0] = first;
+        try {
+            for (var i = 0; i < channels.length; i++) {
+                if (i > 0) {
+                    channels[i] = DatagramChannel.open();
+                }
+                if (reusePort) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port));
+                channels[i].configureBlocking(false);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        logger.info("ServerIdUpperCaseUDP started on port " + port + " with " + nbThreads + " threads"
+                + (reusePort ? " (one channel each)" : ""));
+    }
+
+    private void close() {
+        for (var channel : channels) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Upper-cases in place the text of buff, between its position and its limit, if it is ASCII
+     * @return false if the text contains non-ASCII bytes, buff is then unchanged
+     */
+    private static boolean upperCaseAscii(ByteBuffer buff) {
+        for (var i = buff.position(); i < buff.limit(); i++) {
+            if (buff.get(i) < 0) {
+                return false;
+            }
+        }
+        for (var i = buff.position(); i < buff.limit(); i++) {
+            var b = buff.get(i);
+            if (b >= 'a' && b <= 'z') {
+                buff.put(i, (byte) (b - ('a' - 'A')));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the request in buff by its response, ready to be sent
+     * @return false if the request is malformed and must be ignored
+     */
+    private boolean process(ByteBuffer buff, InetSocketAddress exp) {
+        buff.flip();
+        if (buff.remaining() < Long.BYTES) {
+            if (events.record(IGNORED)) {
+                logger.warning("Received " + buff.remaining() + " bytes from " + exp + ", too short for an ID");
+            }
+            return false;
+        }
+        buff.position(Long.BYTES);
+        if (upperCaseAscii(buff)) {
+            buff.position(0);
+            return true;
+        }
+        var data = UTF8.decode(buff).toString();
+        if (events.record(DECODED)) {
+            logger.info("Decoded data : ID = " + buff.getLong(0) + "\nData = " + data);
+        }
+        buff.limit(buff.capacity()).position(Long.BYTES);
+        buff.put(UTF8.encode(data.toUpperCase()));
+        buff.flip();
+        return true;
+    }
+
+    /**
+     * Receives and answers the datagrams waiting on the channel, until the channel is empty,
+     * MAX_BATCH datagrams have been handled or a response could not be sent
+     */
+    private void doRead(SelectionKey key, WorkerContext context) throws IOException {
+        var buff = context.buff;
+        for (var i = 0; i < MAX_BATCH; i++) {
+            buff.clear().limit(BUFFER_SIZE);
+            var exp = (InetSocketAddress) context.dc.receive(buff);
+            if (exp == null) {
+                return;
+            }
+            if (events.record(RECEIVED)) {
+                logger.info("Received " + buff.position() + " bytes from " + exp);
+            }
+            if (! process(buff, exp)) {
+                continue;
+            }
+            if (context.dc.send(buff, exp) == 0) {     // socket buffer full, send it when writable
+                context.exp = exp;
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    private void doWrite(SelectionKey key, WorkerContext context) throws IOException {
+        if (context.dc.send(context.buff, context.exp) == 0) {
+            return;
+        }
+        context.exp = null;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void treatKey(SelectionKey key) {
+        var context = (WorkerContext) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                doWrite(key, context);
+            }
+            if (key.isValid() && key.isReadable()) {
+                doRead(key, context);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void workerLoop(DatagramChannel dc) throws IOException {
+        try (var selector = Selector.open()) {
+            dc.register(selector, SelectionKey.OP_READ, new WorkerContext(dc));
+            while (! Thread.interrupted()) {
+                try {
+                    selector.select(this::treatKey);
+                } catch (UncheckedIOException tunneled) {
+                    throw tunneled.getCause();
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs the number of datagrams received per second, every REPORT_PERIOD_MILLIS while it is not 0
+     */
+    private void reportLoop() throws InterruptedException {
+        var last = events.count(RECEIVED);
+        var lastTime = System.nanoTime();
+        while (! Thread.interrupted()) {
+            Thread.sleep(REPORT_PERIOD_MILLIS);
+            var count = events.count(RECEIVED);
+            var time = System.nanoTime();
+            if (count != last) {
+                logger.info((count - last) * TimeUnit.SECONDS.toNanos(1) / (time - lastTime) + " datagrams/s ("
+                        + events + ")");
+            }
+            last = count;
+            lastTime = time;
+        }
     }
 
+    /**
+     * Starts the worker threads and waits for them. Interrupting the calling thread stops the server.
+     */
     public void serve() {
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < nbThreads; i++) {
+            var dc = channels[i % channels.length];
+            var thread = new Thread(() -> {
+                try {
+                    workerLoop(dc);
+                } catch (ClosedSelectorException | IOException e) {
+                    if (dc.isOpen()) {
+                        logger.log(Level.SEVERE, "Unexpected stop of a worker thread", e);
+                        close();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        var reporter = new Thread(() -> {
+            try {
+                reportLoop();
+            } catch (InterruptedException e) {
+                // server stopped
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
         try {
-            while (!Thread.interrupted()) {
-                buff.clear();
-                InetSocketAddress exp = (InetSocketAddress) dc.receive(buff);
-                logger.info("Received " + buff.position() + " bytes from " + exp.toString());
-                buff.flip();
-
-                long id = buff.getLong();
-                String data = UTF8.decode(buff).toString();
-                String upperCaseData = data.toUpperCase();
-                logger.info("Decoded data : ID = " + id + "\nData = " + data);
-
-                ByteBuffer buffSend = ByteBuffer.allocate(BUFFER_SIZE);
-                buffSend.putLong(id);
-                buffSend.put(UTF8.encode(upperCaseData)).flip();
-                dc.send(buffSend, exp);
-            }
-        } catch (AsynchronousCloseException e) {
+            for (var thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
             logger.log(Level.INFO, "Server has been stopped");
-        } catch (IOException e) {
-            logger.log(Level.SEVERE, "Unexpected stop of the server");
+        } finally {
+            for (var thread : threads) {
+                thread.interrupt();
+            }
+            reporter.interrupt();
+            close();
         }
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerIdUpperCaseUDP port [nbThreads]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
         ServerIdUpperCaseUDP server;
         int port = Integer.parseInt(args[0]);
-        if (!(port >= 1024) & port <= 65535) {
+        if (port < 1024 || port > 65535) {
             logger.severe("The port number must be between 1024 and 65535");
             return;
         }
+        int nbThreads = args.length == 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
         try {
-            server = new ServerIdUpperCaseUDP(port);
+            server = new ServerIdUpperCaseUDP(port, nbThreads);
         } catch (BindException e) {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
             return;
         }
+        server.events.register(logger);
         server.serve();
-        server.dc.close();
     }
 }
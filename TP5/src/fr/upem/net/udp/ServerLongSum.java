@@ -1,159 +1,617 @@
 package fr.upem.net.udp;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.DatagramChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ServerLongSum {
+/**
+ * Server summing the operands sent by its clients.
+ * <p>
+ * Datagrams are received by several threads. When the platform supports SO_REUSEPORT, each thread has
+ * its own channel bound to the port and the kernel spreads the clients over them, otherwise the threads
+ * share one channel. The sessions are kept in a concurrent map and updated without locks, so any thread
+ * can process any datagram.
+ * <p>
+ * Memory is bounded : the number of sessions is capped, the received operands of each session are tracked
+ * in a SparseBitSet, which grows with the operands actually received, and the memory of all these sets is
+ * capped. A request that would need a session or memory beyond these caps is dropped. A complete session is
+ * reduced to its result, kept for a short grace period to answer late duplicate requests. A sweeper thread
+ * evicts the results after this grace period and the idle sessions after a timeout.
+ * <p>
+ * Protocol : OP (1) sessionId idPosOper totalOper opValue is answered by ACK (2) sessionId idPosOper, and
+ * by RES (3) sessionId sum once all the operands have been received (all values are longs).
+ * Clients sending many operands can use OP_COALESCED (4) instead of OP, with the same content. These
+ * operands are not acknowledged one by one : within ACK_DELAY_MILLIS, or as soon as ACK_BATCH of them are
+ * waiting, the session gets one ACK_RANGES (5) sessionId cumulative nbRanges (byte) followed by nbRanges
+ * pairs start end. All the operands before cumulative have been received, as well as those in each range
+ * [start, end), at most MAX_ACK_RANGES of them being sent. Old clients keep using OP and are unaffected.
+ */
+public class ServerLongSum implements Closeable {
 
     private static class SumData {
+        private static final long EVICTED = Long.MIN_VALUE;
+        private final SessionKey key;
         private final long nbOpExpected;
-        private long partialSum;
-        private final SafeBitSet received;
+        private final AtomicLong partialSum = new AtomicLong();
+        private final AtomicLong remaining;     // decremented once the operand is added to partialSum
+        private final AtomicLong lastAccess;    // nanoTime of the last request, EVICTED once removed
+        private volatile SparseBitSet received; // dropped once the sum is complete, only the result is kept
+        private final AtomicInteger unacked = new AtomicInteger();     // OP_COALESCED operands not acknowledged
 
-        public SumData(long nbOp) {
+        public SumData(SessionKey key, long nbOp, SparseBitSet received, long now) {
             if (nbOp <=  0) {
                 throw new IllegalArgumentException("Number of operandes must be strictly positive");
             }
+            this.key = key;
             nbOpExpected = nbOp;
-            partialSum = 0;
-            received = new SafeBitSet(nbOpExpected);
+            remaining = new AtomicLong(nbOp);
+            this.received = received;
+            lastAccess = new AtomicLong(now);
         }
 
-        public SumData update(long idPosOper, long opValue) {
-            if (! received.get(idPosOper)) {
-                received.set(idPosOper);
-                partialSum += opValue;
+        /**
+         * @return false if the session has been evicted, it must not be updated anymore
+         */
+        private boolean touch(long now) {
+            while (true) {
+                var last = lastAccess.get();
+                if (last == EVICTED) {
+                    return false;
+                }
+                if (lastAccess.compareAndSet(last, now)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Marks the session as evicted if it has not been accessed for timeout nanoseconds,
+         * or for resultGrace nanoseconds once its sum is complete
+         * @return true if the session was evicted by this call
+         */
+        private boolean evictIfIdle(long now, long timeout, long resultGrace) {
+            if (sumCompleted()) {
+                timeout = resultGrace;
+            }
+            var last = lastAccess.get();
+            return last != EVICTED && now - last > timeout && lastAccess.compareAndSet(last, EVICTED);
+        }
+
+        /**
+         * @return false if the operand could not be recorded for lack of memory
+         */
+        public boolean update(long idPosOper, long opValue) {
+            var received = this.received;
+            if (received == null || idPosOper < 0 || idPosOper >= nbOpExpected) {
+                return true;
+            }
+            var result = received.set(idPosOper);
+            if (result == SparseBitSet.REFUSED) {
+                return false;
+            }
+            if (result == SparseBitSet.SET) {
+                partialSum.addAndGet(opValue);
+                if (remaining.decrementAndGet() == 0) {
+                    this.received = null;
+                    received.releaseAll();
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gives back the memory of an evicted session
+         */
+        private void release() {
+            var received = this.received;
+            if (received != null) {
+                received.releaseAll();
             }
-            return this;
         }
 
         private boolean sumCompleted() {
-            return received.getCardinality() == nbOpExpected;
+            return remaining.get() == 0;
         }
 
         public long getSum() {
             if (sumCompleted()) {
-                return partialSum;
+                return partialSum.get();
             }
             return -1;
         }
+
+        /**
+         * Writes the cumulative acknowledgement, the number of ranges and the ranges of an ACK_RANGES
+         */
+        private void putAckRanges(ByteBuffer buffer) {
+            var received = this.received;
+            if (received == null) {
+                buffer.putLong(nbOpExpected).put((byte) 0);
+                return;
+            }
+            var end = received.nextClearBit(0);
+            buffer.putLong(end);
+            var countPosition = buffer.position();
+            buffer.put((byte) 0);
+            var nbRanges = 0;
+            while (nbRanges < MAX_ACK_RANGES) {
+                var start = received.nextSetBit(end);
+                if (start == -1) {
+                    break;
+                }
+                end = received.nextClearBit(start);
+                buffer.putLong(start).putLong(end);
+                nbRanges++;
+            }
+            buffer.put(countPosition, (byte) nbRanges);
+        }
     }
 
-    // InetSocketAddress= client
-    // Long = session id for this client
-    // SumData = state of the sum at a given time
-    private final HashMap<InetSocketAddress, HashMap<Long, SumData>> map;
-    private final DatagramChannel dc;
+    /**
+     * The keys in the map are never modified, only the lookup key of each receiver is
+     */
+    private static final class SessionKey {
+        private InetSocketAddress client;
+        private long sessionId;
+
+        private SessionKey(InetSocketAddress client, long sessionId) {
+            this.client = client;
+            this.sessionId = sessionId;
+        }
+
+        private SessionKey set(InetSocketAddress client, long sessionId) {
+            this.client = client;
+            this.sessionId = sessionId;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SessionKey
+                    && sessionId == ((SessionKey) o).sessionId && client.equals(((SessionKey) o).client);
+        }
+
+        @Override
+        public int hashCode() {
+            return client.hashCode() * 31 + Long.hashCode(sessionId);
+        }
+    }
+
+    /**
+     * Buffers of a receiver thread, allocated once
+     */
+    static final class ReceiverContext {
+        private final DatagramChannel dc;
+        private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer ack = ByteBuffer.allocateDirect(RESPONSE_SIZE);
+        private final ByteBuffer res = ByteBuffer.allocateDirect(RESPONSE_SIZE);
+        private final ByteBuffer ackRanges = ByteBuffer.allocateDirect(ACK_RANGES_SIZE);
+        private final SessionKey lookupKey = new SessionKey(null, 0);
+
+        ReceiverContext(DatagramChannel dc) {
+            this.dc = dc;
+        }
+    }
+
+    // SessionKey = client and session id for this client
+    // SumData = state of the sum at a given time, reduced to the result once complete
+    private final ConcurrentHashMap<SessionKey, SumData> map;
+    private final DatagramChannel[] channels;   // one per receiver thread, or a single one shared by all
+    private final int nbThreads;
+    private final long sessionTimeout;          // in nanoseconds, for idle sessions
+    private final long resultGrace;             // in nanoseconds, for the results of complete sessions
+    private final int maxSessions;
+    private final AtomicInteger nbSessions = new AtomicInteger();  // sessions in the map, evicted ones excluded
+    private final long maxTrackingMemory;
+    private final AtomicLong trackingMemory = new AtomicLong();    // bytes of the sets of received operands
+    private final SparseBitSet.Budget budget = new SparseBitSet.Budget() {
+        @Override
+        public boolean reserve(long bytes) {
+            while (true) {
+                var used = trackingMemory.get();
+                if (bytes > maxTrackingMemory - used) {
+                    return false;
+                }
+                if (trackingMemory.compareAndSet(used, used + bytes)) {
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public void release(long bytes) {
+            trackingMemory.addAndGet(-bytes);
+        }
+    };
+    private final ConcurrentLinkedQueue<SumData> pendingAcks = new ConcurrentLinkedQueue<>();
     private static final Logger logger = Logger.getLogger(ServerLongSum.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
+    private static final int REQUEST_SIZE = Byte.BYTES + 4 * Long.BYTES;
+    private static final int RESPONSE_SIZE = Byte.BYTES + 2 * Long.BYTES;
+    private static final int MAX_ACK_RANGES = 32;
+    private static final int ACK_RANGES_SIZE = 2 * Byte.BYTES + (2 + 2 * MAX_ACK_RANGES) * Long.BYTES;
+    private static final int ACK_BATCH = 64;
+    private static final long ACK_DELAY_MILLIS = 2;
+    private static final long SESSION_TIMEOUT_MILLIS = 60_000;
+    private static final long RESULT_GRACE_MILLIS = 5_000;
+    private static final int MAX_SESSIONS = 100_000;
+    private static final long MAX_TRACKING_MEMORY = 128L << 20;    // bytes
     private static final byte OP = 1;
     private static final byte ACK = 2;
     private static final byte RES = 3;
-    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    //private final ByteBuffer buffSend = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private static final byte OP_COALESCED = 4;
+    private static final byte ACK_RANGES = 5;
+    private static final int RECEIVED = 0;
+    private static final int ACK_SENT = 1;
+    private static final int RES_SENT = 2;
+    private static final int IGNORED = 3;
+    private static final int REFUSED = 4;
+    private static final int SESSION_EVICTED = 5;
+    private static final int ACK_RANGES_SENT = 6;
+    private final EventCounters events = new EventCounters("received", "ack sent", "res sent", "ignored",
+            "refused", "evicted", "ack ranges sent");
 
     public ServerLongSum(int port) throws IOException {
-        dc = DatagramChannel.open();
-        dc.bind(new InetSocketAddress(7777));
+        this(port, Runtime.getRuntime().availableProcessors());
+    }
 
-        map = new HashMap<>();
-        logger.info("ServerBetterUpperCaseUDP started on port " + port);
+    public ServerLongSum(int port, int nbThreads) throws IOException {
+        this(port, nbThreads, SESSION_TIMEOUT_MILLIS, RESULT_GRACE_MILLIS, MAX_SESSIONS, MAX_TRACKING_MEMORY);
     }
 
-    private void updateClientData(InetSocketAddress exp, long sessionId, long idPosOper, long totalOper, long opValue) {
-        map.putIfAbsent(exp, new HashMap<>());
-        map.get(exp).compute(sessionId, (k, v) ->
-                (v == null)
-                        ? new SumData(totalOper).update(idPosOper, opValue)
-                        : v.update(idPosOper, opValue));
+    /**
+     * @param nbThreads : number of threads receiving and processing the datagrams
+     * @param sessionTimeoutMillis : an incomplete session is forgotten after this time without request
+     * @param resultGraceMillis : the result of a complete session is kept this time after its last request,
+     *                          to answer late duplicate requests
+     * @param maxSessions : maximum number of sessions kept, requests opening a new session beyond it are dropped
+     * @param maxTrackingMemory : maximum number of bytes used to track the received operands of the sessions,
+     *                          requests needing more memory are dropped
+     */
+    public ServerLongSum(int port, int nbThreads, long sessionTimeoutMillis, long resultGraceMillis, int maxSessions,
+                         long maxTrackingMemory) throws IOException {
+        if (nbThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be strictly positive");
+        }
+        if (sessionTimeoutMillis <= 0 || resultGraceMillis <= 0 || maxSessions <= 0 || maxTrackingMemory <= 0) {
+            throw new IllegalArgumentException("Timeouts, maximum sessions and maximum memory must be strictly positive");
+        }
+        this.nbThreads = nbThreads;
+        this.sessionTimeout = TimeUnit.MILLISECONDS.toNanos(sessionTimeoutMillis);
+        this.resultGrace = TimeUnit.MILLISECONDS.toNanos(resultGraceMillis);
+        this.maxSessions = maxSessions;
+        this.maxTrackingMemory = maxTrackingMemory;
+        var first = DatagramChannel.open();
+        var reusePort = nbThreads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        channels = new DatagramChannel[reusePort ? nbThreads : 1];
+        channels[0] = first;
+        try {
+            for (var i = 0; i < channels.length; i++) {
+                if (i > 0) {
+                    channels[i] = DatagramChannel.open();
+                }
+                if (reusePort) {
+                    channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                channels[i].bind(new InetSocketAddress(port));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        map = new ConcurrentHashMap<>();
+        logger.info("ServerLongSum started on port " + port + " with " + nbThreads + " threads"
+                + (reusePort ? " (one channel each)" : ""));
     }
 
-    private void sendAck(InetSocketAddress exp, long sessionId, long idPosOper) throws IOException {
-        ByteBuffer buffSend = ByteBuffer.allocate(BUFFER_SIZE);
+    /**
+     * Closes the channels of the server, which stops serve
+     */
+    @Override
+    public void close() {
+        for (var channel : channels) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return a new session, null if maxSessions are already kept or if there is no memory left to track
+     * its operands
+     */
+    private SumData createSession(SessionKey key, long totalOper, long now) {
+        while (true) {
+            var count = nbSessions.get();
+            if (count >= maxSessions) {
+                return null;
+            }
+            if (nbSessions.compareAndSet(count, count + 1)) {
+                break;
+            }
+        }
+        var received = SparseBitSet.create(totalOper, budget);
+        if (received == null) {
+            nbSessions.decrementAndGet();
+            return null;
+        }
+        return new SumData(key, totalOper, received, now);
+    }
+
+    /**
+     * @return the session updated with the operand, null if the operand could not be recorded
+     */
+    private SumData updateClientData(ReceiverContext context, InetSocketAddress exp, long sessionId, long idPosOper,
+                                     long totalOper, long opValue) {
+        var key = context.lookupKey.set(exp, sessionId);
+        var now = System.nanoTime();
+        while (true) {
+            var sumData = map.get(key);
+            if (sumData == null) {
+                sumData = map.computeIfAbsent(new SessionKey(exp, sessionId),
+                        k -> createSession(k, totalOper, now));
+                if (sumData == null) {
+                    return null;
+                }
+            }
+            if (sumData.touch(now)) {
+                return sumData.update(idPosOper, opValue) ? sumData : null;
+            }
+            map.remove(key, sumData);       // evicted concurrently, its removal may not be done yet
+        }
+    }
+
+    /**
+     * Removes the sessions idle for more than sessionTimeout, and the results idle for more than resultGrace
+     */
+    private void evictSessions() {
+        var now = System.nanoTime();
+        for (var entry : map.entrySet()) {
+            var sumData = entry.getValue();
+            if (sumData.evictIfIdle(now, sessionTimeout, resultGrace)) {
+                map.remove(entry.getKey(), sumData);
+                sumData.release();
+                nbSessions.decrementAndGet();
+                events.record(SESSION_EVICTED);
+            }
+        }
+    }
+
+    private void sendAck(ReceiverContext context, InetSocketAddress exp, long sessionId, long idPosOper) throws IOException {
+        var buffSend = context.ack;
         buffSend.clear();
         buffSend.put(ACK);
         buffSend.putLong(sessionId);
         buffSend.putLong(idPosOper);
         buffSend.flip();
-        logger.info("\nSending ACK for client : " + exp.toString() + " on session : " + sessionId + " for op : " + idPosOper);
-        dc.send(buffSend, exp);
+        if (events.record(ACK_SENT)) {
+            logger.info("\nSending ACK for client : " + exp.toString() + " on session : " + sessionId + " for op : " + idPosOper);
+        }
+        context.dc.send(buffSend, exp);
     }
 
-    private void sendRes(InetSocketAddress exp, long sessionId) throws IOException {
-        long sum = map.get(exp).get(sessionId).getSum();
+    private void sendRes(ReceiverContext context, InetSocketAddress exp, long sessionId, SumData sumData) throws IOException {
+        long sum = sumData.getSum();
         if (sum != -1) {
-            ByteBuffer buffSend = ByteBuffer.allocate(BUFFER_SIZE);
+            var buffSend = context.res;
             buffSend.clear();
             buffSend.put(RES);
             buffSend.putLong(sessionId);
             buffSend.putLong(sum);
             buffSend.flip();
-            logger.info("\n Sending RES for client : " + exp.toString() + " on session :" + sessionId
-                            + " with res : " + sum);
-            dc.send(buffSend, exp);
+            if (events.record(RES_SENT)) {
+                logger.info("\n Sending RES for client : " + exp.toString() + " on session :" + sessionId
+                                + " with res : " + sum);
+            }
+            context.dc.send(buffSend, exp);
+        }
+    }
+    /**
+     * Counts an OP_COALESCED operand in the next ACK_RANGES of its session, sent at once if ACK_BATCH
+     * operands are waiting, by the acker thread otherwise
+     */
+    private void acknowledge(ReceiverContext context, SumData sumData) throws IOException {
+        var unacked = sumData.unacked.incrementAndGet();
+        if (unacked == 1) {
+            pendingAcks.add(sumData);
+        } else if (unacked >= ACK_BATCH && sumData.unacked.compareAndSet(unacked, 0)) {
+            sendAckRanges(context.dc, context.ackRanges, sumData);
+        }
+    }
+
+    private void sendAckRanges(DatagramChannel dc, ByteBuffer buffSend, SumData sumData) throws IOException {
+        buffSend.clear();
+        buffSend.put(ACK_RANGES);
+        buffSend.putLong(sumData.key.sessionId);
+        sumData.putAckRanges(buffSend);
+        buffSend.flip();
+        if (events.record(ACK_RANGES_SENT)) {
+            logger.info("\nSending ACK_RANGES for client : " + sumData.key.client + " on session : "
+                    + sumData.key.sessionId + " up to op : " + buffSend.getLong(Byte.BYTES + Long.BYTES));
+        }
+        dc.send(buffSend, sumData.key.client);
+    }
+
+    /**
+     * Sends the acknowledgements of the sessions waiting for one, every ACK_DELAY_MILLIS
+     */
+    private void ackerLoop(DatagramChannel dc) throws IOException {
+        var buffSend = ByteBuffer.allocateDirect(ACK_RANGES_SIZE);
+        var delay = TimeUnit.MILLISECONDS.toNanos(ACK_DELAY_MILLIS);
+        while (! Thread.interrupted()) {
+            LockSupport.parkNanos(delay);
+            for (var sumData = pendingAcks.poll(); sumData != null; sumData = pendingAcks.poll()) {
+                if (sumData.unacked.getAndSet(0) > 0) {
+                    sendAckRanges(dc, buffSend, sumData);
+                }
+            }
         }
     }
-    private void sendResponse(InetSocketAddress exp, long sessionId, long idPosOper) throws IOException {
-        sendAck(exp, sessionId, idPosOper);
-        sendRes(exp, sessionId);
+
+    private void sendResponse(ReceiverContext context, InetSocketAddress exp, long sessionId, long idPosOper,
+                              SumData sumData) throws IOException {
+        sendAck(context, exp, sessionId, idPosOper);
+        sendRes(context, exp, sessionId, sumData);
     }
 
-    private void dealWithRequest(InetSocketAddress exp) throws IOException {
+    private void dealWithRequest(ReceiverContext context, InetSocketAddress exp) throws IOException {
+        var buff = context.buff;
         buff.flip();
-        byte opType = buff.get();
-        if (opType != OP) {
-            logger.warning("Received requests from client: " + exp.toString() + " with OPTYPE: "
-                            + opType + ".\nIgnoring it");
-            return; // client requests must be with OP TYPE = 1
+        byte opType = buff.remaining() < REQUEST_SIZE ? 0 : buff.get();
+        if (opType != OP && opType != OP_COALESCED) {
+            if (events.record(IGNORED)) {
+                logger.warning("Received requests from client: " + exp.toString() + " with OPTYPE: "
+                                + opType + ".\nIgnoring it");
+            }
+            return; // client requests must be with OP TYPE = 1 or 4
         }
         long sessionId = buff.getLong();
         long idPosOper = buff.getLong();
         long totalOper = buff.getLong();
         long opValue   = buff.getLong();
+        if (totalOper <= 0) {
+            events.record(IGNORED);
+            return;
+        }
 
-        updateClientData(exp, sessionId, idPosOper, totalOper, opValue);
-        sendResponse(exp, sessionId, idPosOper);
+        var sumData = updateClientData(context, exp, sessionId, idPosOper, totalOper, opValue);
+        if (sumData == null) {
+            if (events.record(REFUSED)) {
+                logger.warning("No session or memory left to track operands, request of client " + exp + " dropped");
+            }
+            return;     // neither acknowledged nor counted, the client will send it again
+        }
+        if (opType == OP_COALESCED) {
+            acknowledge(context, sumData);
+            sendRes(context, exp, sessionId, sumData);
+            return;
+        }
+        sendResponse(context, exp, sessionId, idPosOper, sumData);
     }
 
-    public void serve() throws IOException {
+    /**
+     * Processes request, in read-mode, as if context had received it from exp.
+     * Used by the tests to run the request path without a client.
+     */
+    void handle(ReceiverContext context, ByteBuffer request, InetSocketAddress exp) throws IOException {
+        context.buff.clear();
+        context.buff.put(request);
+        dealWithRequest(context, exp);
+    }
+
+    private void receiveLoop(DatagramChannel dc) throws IOException {
+        var context = new ReceiverContext(dc);
+        var buff = context.buff;
         while (! Thread.interrupted()) {
             buff.clear();
             InetSocketAddress exp = (InetSocketAddress) dc.receive(buff);
-            logger.log(Level.INFO, "Received " + buff.position() + " bytes from " + exp.toString());
-            dealWithRequest(exp);
+            if (events.record(RECEIVED)) {
+                logger.log(Level.INFO, "Received " + buff.position() + " bytes from " + exp.toString());
+            }
+            dealWithRequest(context, exp);
+        }
+    }
+
+    /**
+     * Starts the receiver threads and waits for them. Interrupting the calling thread stops the server.
+     */
+    public void serve() throws IOException {
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < nbThreads; i++) {
+            var dc = channels[i % channels.length];
+            var thread = new Thread(() -> {
+                try {
+                    receiveLoop(dc);
+                } catch (AsynchronousCloseException e) {
+                    // server stopped
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unexpected stop of a receiver thread", e);
+                    close();
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        var sweeper = new Thread(() -> {
+            var period = Math.max(TimeUnit.NANOSECONDS.toMillis(Math.min(sessionTimeout, resultGrace)) / 4, 1);
+            try {
+                while (! Thread.interrupted()) {
+                    Thread.sleep(period);
+                    evictSessions();
+                }
+            } catch (InterruptedException e) {
+                // server stopped
+            }
+        });
+        sweeper.setDaemon(true);
+        sweeper.start();
+        var acker = new Thread(() -> {
+            try {
+                ackerLoop(channels[0]);
+            } catch (AsynchronousCloseException e) {
+                // server stopped
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unexpected stop of the acker thread", e);
+            }
+        });
+        acker.setDaemon(true);
+        acker.start();
+        try {
+            for (var thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            logger.info("Server has been stopped");
+        } finally {
+            sweeper.interrupt();
+            acker.interrupt();
+            close();
         }
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerIdUpperCaseUDP port");
+        System.out.println("Usage : ServerLongSum port [nbThreads]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
+        if (args.length != 1 && args.length != 2) {
             usage();
             return;
         }
         ServerLongSum server;
         int port = Integer.parseInt(args[0]);
-        if (!(port >= 1024) & port <= 65535) {
+        if (port < 1024 || port > 65535) {
             logger.severe("The port number must be between 1024 and 65535");
             return;
         }
+        int nbThreads = args.length == 2 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
         try {
-            server = new ServerLongSum(port);
+            server = new ServerLongSum(port, nbThreads);
         } catch (BindException e) {
             logger.severe("Server could not bind on " + port + "\nAnother server is probably running on this port.");
             return;
         }
+        server.events.register(logger);
         server.serve();
     }
 }
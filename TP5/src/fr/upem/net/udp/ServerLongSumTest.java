@@ -0,0 +1,56 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class ServerLongSum
+ */
+public class ServerLongSumTest {
+
+    private static ByteBuffer op(long sessionId, long idPosOper, long totalOper, long opValue) {
+        return ByteBuffer.allocate(Byte.BYTES + 4 * Long.BYTES)
+                .put((byte) 1).putLong(sessionId).putLong(idPosOper).putLong(totalOper).putLong(opValue).flip();
+    }
+
+    /**
+     * Once warmed up, answering an OP with its ACK allocates nothing on the receiver thread
+     */
+    @Test
+    public void testRequestPathDoesNotAllocate() throws IOException {
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (! threadBean.isThreadAllocatedMemorySupported()) {
+            return;
+        }
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        var warmup = 50_000;
+        var measured = 10_000;
+        try (var dc = DatagramChannel.open(); var client = DatagramChannel.open();
+             var server = new ServerLongSum(0, 1)) {
+            dc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            client.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            var exp = (InetSocketAddress) client.getLocalAddress();
+            var context = new ServerLongSum.ReceiverContext(dc);
+            var request = op(1, 0, 1 << 20, 1);
+            for (var i = 0; i < warmup; i++) {           // even operands, allocates the chunks of the session
+                server.handle(context, request.putLong(1 + Long.BYTES, 2 * i).rewind(), exp);
+            }
+            var before = threadBean.getCurrentThreadAllocatedBytes();
+            for (var i = 0; i < measured; i++) {          // new odd operands, in chunks already allocated
+                server.handle(context, request.putLong(1 + Long.BYTES, 2 * i + 1).rewind(), exp);
+            }
+            var allocated = threadBean.getCurrentThreadAllocatedBytes() - before;
+            assertTrue(allocated < measured, allocated + " bytes allocated for " + measured + " requests");
+        }
+    }
+}
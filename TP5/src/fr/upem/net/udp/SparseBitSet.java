@@ -0,0 +1,363 @@
+package fr.upem.net.udp;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Thread-safe bit set whose memory follows the bits actually set, whatever its size.
+ * <p>
+ * The bits are split in chunks of CHUNK_BITS. A chunk is a small bit set allocated on the first bit set
+ * in it. The chunks are the leaves of a radix tree indexed by chunk number, whose depth only depends on
+ * the size of the set : a chunk is reached in a bounded number of steps, and the nodes are allocated with
+ * the first chunk under them. A chunk whose bits are all set is replaced by a shared full marker, and so is
+ * a node whose children are all full, so a set filled roughly in order only holds the few nodes and chunks
+ * where bits are missing. The number of full chunks at the start of the set is kept apart, to answer
+ * nextClearBit from the start without walking the tree. Nodes, chunks and bits are installed by CAS,
+ * without locks.
+ * <p>
+ * The memory is taken from a Budget when a node or a chunk is added, so setting a bit may be refused.
+ * Creating a set only takes a constant amount, even for a huge size.
+ */
+public class SparseBitSet {
+
+    /**
+     * Memory shared by several sets
+     */
+    public interface Budget {
+        /**
+         * @return false if the bytes are not available
+         */
+        boolean reserve(long bytes);
+
+        void release(long bytes);
+    }
+
+    public static final int SET = 1;
+    public static final int ALREADY_SET = 0;
+    public static final int REFUSED = -1;
+
+    private static final int CHUNK_SHIFT = 12;              // 4096 bits, 512 bytes
+    private static final long CHUNK_BITS = 1L << CHUNK_SHIFT;
+    private static final int NODE_SHIFT = 4;
+    private static final int NODE_SIZE = 1 << NODE_SHIFT;   // children of a node
+    private static final long OBJECT_OVERHEAD = 64;         // rough size of the objects around the arrays
+    private static final long NODE_BYTES = OBJECT_OVERHEAD + NODE_SIZE * Long.BYTES;   // full-size references
+
+    private static final class Chunk {
+        private final AtomicLongArray words;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private Chunk(int nbWords) {
+            words = new AtomicLongArray(nbWords);
+        }
+
+        /**
+         * @return the offset of the first bit at or after start whose value is value, -1 if there is none
+         */
+        private long next(long start, boolean value) {
+            var first = (int) (start >>> 6);
+            for (var w = first; w < words.length(); w++) {
+                var bits = value ? words.get(w) : ~words.get(w);
+                if (w == first) {
+                    bits &= -1L << start;
+                }
+                if (bits != 0) {
+                    return (long) w * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Children are nodes one level below, chunks at level 1, FULL or null
+     */
+    private static final class Node {
+        private final AtomicReferenceArray<Object> children = new AtomicReferenceArray<>(NODE_SIZE);
+        private final AtomicInteger full = new AtomicInteger();    // children replaced by FULL
+    }
+
+    private static final Object FULL = new Object();      // a chunk or a node whose bits are all set
+
+    private final long size;
+    private final long nbChunks;
+    private final int height;                   // level of root, chunks are at level 0
+    private final Node root = new Node();
+    private final AtomicLong fullPrefix = new AtomicLong();    // the chunks before it are all full
+    private final Budget budget;
+    private final AtomicLong reserved = new AtomicLong();  // bytes taken from the budget by this set
+    private volatile boolean released;
+
+    private SparseBitSet(long size, Budget budget, long reserved) {
+        this.size = size;
+        this.budget = budget;
+        this.reserved.set(reserved);
+        nbChunks = ((size - 1) >>> CHUNK_SHIFT) + 1;
+        var digits = Long.SIZE - Long.numberOfLeadingZeros(nbChunks - 1);
+        height = Math.max(1, (digits + NODE_SHIFT - 1) / NODE_SHIFT);
+    }
+
+    /**
+     * @return a set of size bits, null if budget cannot hold it
+     */
+    public static SparseBitSet create(long size, Budget budget) {
+        Objects.requireNonNull(budget);
+        if (size <= 0) {
+            throw new IllegalArgumentException("Size must be greater than 0");
+        }
+        var bytes = OBJECT_OVERHEAD + NODE_BYTES;
+        if (! budget.reserve(bytes)) {
+            return null;
+        }
+        return new SparseBitSet(size, budget, bytes);
+    }
+
+    private long bitsInChunk(long c) {
+        return Math.min(CHUNK_BITS, size - (c << CHUNK_SHIFT));
+    }
+
+    private int wordsInChunk(long c) {
+        return (int) ((bitsInChunk(c) + Long.SIZE - 1) / Long.SIZE);
+    }
+
+    private long chunkBytes(long c) {
+        return OBJECT_OVERHEAD + (long) wordsInChunk(c) * Long.BYTES;
+    }
+
+    /**
+     * @return the index, in its parent at level, of the item of level - 1 holding chunk c
+     */
+    private static int digit(long c, int level) {
+        return (int) (c >>> ((level - 1) * NODE_SHIFT)) & (NODE_SIZE - 1);
+    }
+
+    /**
+     * @return the number of children of the node at level holding chunk c, the last nodes being incomplete
+     */
+    private long childrenOf(long c, int level) {
+        var childShift = (level - 1) * NODE_SHIFT;
+        var first = (c >>> (childShift + NODE_SHIFT)) << NODE_SHIFT;   // first child, counted in children
+        return Math.min(NODE_SIZE, ((nbChunks - 1) >>> childShift) - first + 1);
+    }
+
+    private void release(long bytes) {
+        while (true) {
+            var current = reserved.get();
+            if (current < bytes) {
+                return;         // already given back by releaseAll
+            }
+            if (reserved.compareAndSet(current, current - bytes)) {
+                budget.release(bytes);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gives back to the budget all the memory of the set, which must not be used anymore
+     */
+    public void releaseAll() {
+        released = true;
+        budget.release(reserved.getAndSet(0));
+    }
+
+    /**
+     * Installs a new node, or a new chunk c if level is 1, as child i of parent, unless another thread did it first
+     * @return the child i of parent, null if the memory to hold it could not be reserved
+     */
+    private Object install(Node parent, int i, int level, long c) {
+        var bytes = level == 1 ? chunkBytes(c) : NODE_BYTES;
+        if (! budget.reserve(bytes)) {
+            return null;
+        }
+        var fresh = level == 1 ? new Chunk(wordsInChunk(c)) : new Node();
+        if (! parent.children.compareAndSet(i, null, fresh)) {
+            budget.release(bytes);
+            return parent.children.get(i);
+        }
+        reserved.addAndGet(bytes);
+        if (released) {         // raced with releaseAll
+            releaseAll();
+        }
+        return fresh;
+    }
+
+    /**
+     * Replaces chunk c, whose bits are all set, by FULL in node at level, and the nodes below it
+     * that become full by FULL in their parent, giving back their memory
+     * @return true if node became full
+     */
+    private boolean complete(Node node, int level, long c) {
+        var i = digit(c, level);
+        if (level > 1 && ! complete((Node) node.children.get(i), level - 1, c)) {
+            return false;
+        }
+        node.children.set(i, FULL);
+        release(level == 1 ? chunkBytes(c) : NODE_BYTES);
+        return node.full.incrementAndGet() == childrenOf(c, level);
+    }
+
+    /**
+     * @return the number of chunks from chunk c to the end of the full item holding it, 0 if it is not full
+     */
+    private long fullFrom(long c) {
+        Object item = root;
+        for (var level = height; level > 0; level--) {
+            item = ((Node) item).children.get(digit(c, level));
+            if (item == FULL) {
+                var span = 1L << ((level - 1) * NODE_SHIFT);
+                return span - (c & (span - 1));
+            }
+            if (item == null) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Moves fullPrefix over the full chunks following it
+     */
+    private void advanceFullPrefix() {
+        while (true) {
+            var prefix = fullPrefix.get();
+            var full = prefix < nbChunks ? fullFrom(prefix) : 0;
+            if (full == 0) {
+                return;
+            }
+            fullPrefix.compareAndSet(prefix, Math.min(prefix + full, nbChunks));
+        }
+    }
+
+    /**
+     * Set the bit at the specified index to true
+     * @param index of the bit to set
+     * @return SET if the bit was not already set, ALREADY_SET if it was,
+     *         REFUSED if the memory to hold it could not be reserved
+     */
+    public int set(long index) {
+        Objects.checkIndex(index, size);
+        var c = index >>> CHUNK_SHIFT;
+        if (c < fullPrefix.get()) {
+            return ALREADY_SET;
+        }
+        Object item = root;
+        for (var level = height; level > 0; level--) {
+            var node = (Node) item;
+            var i = digit(c, level);
+            item = node.children.get(i);
+            if (item == null) {
+                item = install(node, i, level, c);
+                if (item == null) {
+                    return REFUSED;
+                }
+            }
+            if (item == FULL) {
+                return ALREADY_SET;
+            }
+        }
+        var chunk = (Chunk) item;
+        var offset = index & (CHUNK_BITS - 1);
+        var word = (int) (offset >>> 6);
+        var mask = 1L << offset;
+        var old = chunk.words.get(word);
+        while ((old & mask) == 0) {
+            var witness = chunk.words.compareAndExchange(word, old, old | mask);
+            if (witness == old) {
+                if (chunk.count.incrementAndGet() == bitsInChunk(c)) {
+                    complete(root, height, c);
+                    advanceFullPrefix();
+                }
+                return SET;
+            }
+            old = witness;
+        }
+        return ALREADY_SET;
+    }
+
+    public boolean get(long index) {
+        Objects.checkIndex(index, size);
+        var c = index >>> CHUNK_SHIFT;
+        if (c < fullPrefix.get()) {
+            return true;
+        }
+        Object item = root;
+        for (var level = height; level > 0; level--) {
+            item = ((Node) item).children.get(digit(c, level));
+            if (item == null || item == FULL) {
+                return item == FULL;
+            }
+        }
+        var offset = index & (CHUNK_BITS - 1);
+        return (((Chunk) item).words.get((int) (offset >>> 6)) & (1L << offset)) != 0;
+    }
+
+    /**
+     * @param item : a node at level, a chunk if level is 0, FULL or null, holding the bits from base
+     * @return the index of the first bit of item at or after from whose value is value, -1 if there is
+     *         none, possibly an index greater than or equal to size for a clear bit
+     */
+    private long next(Object item, int level, long base, long from, boolean value) {
+        if (item == null || item == FULL) {
+            return (item == FULL) == value ? from : -1;
+        }
+        if (level == 0) {
+            var offset = ((Chunk) item).next(from - base, value);
+            return offset == -1 ? -1 : base + offset;
+        }
+        var node = (Node) item;
+        var shift = CHUNK_SHIFT + (level - 1) * NODE_SHIFT;     // bits under a child
+        for (var i = (int) ((from - base) >>> shift); i < NODE_SIZE; i++) {
+            var childBase = base + ((long) i << shift);
+            if (childBase >= size) {
+                break;
+            }
+            var index = next(node.children.get(i), level - 1, childBase, Math.max(from, childBase), value);
+            if (index != -1) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first bit set to false at or after from, size() if there is none
+     */
+    public long nextClearBit(long from) {
+        if (from < 0) {
+            throw new IndexOutOfBoundsException("from < 0: " + from);
+        }
+        from = Math.max(from, fullPrefix.get() << CHUNK_SHIFT);
+        if (from >= size) {
+            return size;
+        }
+        var index = next(root, height, 0, from, false);
+        return index == -1 ? size : Math.min(index, size);
+    }
+
+    /**
+     * @return the index of the first bit set to true at or after from, -1 if there is none
+     */
+    public long nextSetBit(long from) {
+        if (from < 0) {
+            throw new IndexOutOfBoundsException("from < 0: " + from);
+        }
+        if (from >= size) {
+            return -1;
+        }
+        if ((from >>> CHUNK_SHIFT) < fullPrefix.get()) {
+            return from;
+        }
+        return next(root, height, 0, from, true);
+    }
+
+    /**
+     * @return the number of bits of the set
+     */
+    public long size() {
+        return size;
+    }
+}
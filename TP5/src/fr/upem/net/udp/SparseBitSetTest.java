@@ -0,0 +1,136 @@
+package fr.upem.net.udp;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class SparseBitSet
+ */
+public class SparseBitSetTest {
+
+    /**
+     * Budget counting the bytes reserved, refusing beyond max
+     */
+    private static class CountingBudget implements SparseBitSet.Budget {
+        private final long max;
+        private long used;
+
+        CountingBudget(long max) {
+            this.max = max;
+        }
+
+        @Override
+        public boolean reserve(long bytes) {
+            if (bytes > max - used) {
+                return false;
+            }
+            used += bytes;
+            return true;
+        }
+
+        @Override
+        public void release(long bytes) {
+            used -= bytes;
+        }
+    }
+
+    /**
+     * The memory of a set follows the bits set, not the size it claims
+     */
+    @Test
+    public void testHugeSizeReservesOnlyWhatIsSet() {
+        var budget = new CountingBudget(Long.MAX_VALUE);
+        var size = 1L << 41;
+        var set = SparseBitSet.create(size, budget);
+        assertNotNull(set);
+        assertTrue(budget.used < 1024, budget.used + " bytes reserved by an empty set");
+        for (var index : new long[] { 0, 5, 1L << 30, 1L << 40, size - 1 }) {
+            assertEquals(SparseBitSet.SET, set.set(index));
+        }
+        assertTrue(budget.used < 16 * 1024, budget.used + " bytes reserved for 5 bits");
+        assertEquals(1L << 30, set.nextSetBit(6));
+        assertEquals(size - 1, set.nextSetBit((1L << 40) + 1));
+        assertEquals(1, set.nextClearBit(0));
+        assertEquals(size, set.nextClearBit(size - 1));
+        set.releaseAll();
+        assertEquals(0, budget.used);
+    }
+
+    /**
+     * One bit in each of many chunks costs the same memory per chunk, whatever the number of chunks
+     */
+    @Test
+    public void testOneBitPerChunk() {
+        var budget = new CountingBudget(Long.MAX_VALUE);
+        var set = SparseBitSet.create(1L << 41, budget);
+        var nbChunks = 100_000;
+        for (var i = 0L; i < nbChunks; i++) {
+            assertEquals(SparseBitSet.SET, set.set(i << 12));
+        }
+        assertTrue(budget.used < nbChunks * 1024L, budget.used + " bytes reserved for " + nbChunks + " chunks");
+        var found = 0;
+        for (var index = set.nextSetBit(0); index != -1; index = set.nextSetBit(index + 1)) {
+            assertEquals((long) found << 12, index);
+            found++;
+        }
+        assertEquals(nbChunks, found);
+    }
+
+    @Test
+    public void testSameResultsAsBitSet() {
+        var budget = new CountingBudget(Long.MAX_VALUE);
+        var random = new Random(0);
+        for (var size : new int[] { 1, 63, 64, 65, 4095, 4096, 4097, 100_001 }) {
+            var set = SparseBitSet.create(size, budget);
+            var expected = new BitSet(size);
+            for (var i = 0; i < 2 * size; i++) {
+                var index = random.nextInt(size);
+                assertEquals(expected.get(index) ? SparseBitSet.ALREADY_SET : SparseBitSet.SET, set.set(index));
+                expected.set(index);
+            }
+            for (var from = 0; from <= size; from++) {
+                assertEquals(Math.min(expected.nextClearBit(from), size), set.nextClearBit(from));
+                assertEquals(expected.nextSetBit(from), set.nextSetBit(from));
+                if (from < size) {
+                    assertEquals(expected.get(from), set.get(from));
+                }
+            }
+            set.releaseAll();
+        }
+        assertEquals(0, budget.used);
+    }
+
+    /**
+     * Once all its bits are set, a set filled in order keeps no chunk
+     */
+    @Test
+    public void testFullSetGivesBackItsChunks() {
+        var budget = new CountingBudget(Long.MAX_VALUE);
+        var set = SparseBitSet.create(100_000, budget);
+        var empty = budget.used;
+        for (var index = 0; index < 100_000; index++) {
+            set.set(index);
+        }
+        assertEquals(empty, budget.used);
+        assertEquals(100_000, set.nextClearBit(0));
+        assertEquals(SparseBitSet.ALREADY_SET, set.set(42));
+    }
+
+    @Test
+    public void testRefusedBeyondBudget() {
+        var budget = new CountingBudget(2500);
+        var set = SparseBitSet.create(1L << 41, budget);
+        assertEquals(SparseBitSet.SET, set.set(0));
+        assertEquals(SparseBitSet.SET, set.set(1));
+        assertEquals(SparseBitSet.REFUSED, set.set(1L << 40));
+        assertEquals(SparseBitSet.REFUSED, set.set(1L << 20));
+        assertFalse(set.get(1L << 40));
+        assertNull(SparseBitSet.create(1, new CountingBudget(0)));
+    }
+}
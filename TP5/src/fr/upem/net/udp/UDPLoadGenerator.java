@@ -0,0 +1,427 @@
+package fr.upem.net.udp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load generator for the UDP servers of the TPs : ServerIdUpperCaseUDP, ServerLongSum, ServerEchoPlus,
+ * and ServerEchoNonBlocking or ServerEchoMultiPort.
+ * <p>
+ * Requests are sent at a constant rate from many local sockets, spread over nbThreads threads, each
+ * running a selector over its sockets. Each socket numbers its requests and the server protocol carries
+ * this number back in the response. The latency of a request is measured from the time it was scheduled
+ * rather than the time it was actually sent, so a server slowing down the generator is not hidden
+ * (coordinated omission). A request that the socket buffer can not take is sent again once the socket is
+ * writable, still measured from its scheduled time, and the following requests wait behind it. Latencies
+ * go to a LatencyHistogram, requests not sent or without response after the end of the run and the
+ * timeout are counted as lost.
+ */
+public class UDPLoadGenerator {
+
+    /**
+     * Protocol spoken with a server
+     */
+    public enum Target {
+        /** ServerIdUpperCaseUDP : id + ASCII text, answered by id + text in upper case */
+        UPPER {
+            @Override
+            void request(ByteBuffer buff, long seq, int size) {
+                buff.putLong(seq);
+                fill(buff, size);
+            }
+
+            @Override
+            long response(ByteBuffer buff) {
+                return buff.remaining() < Long.BYTES ? -1 : buff.getLong();
+            }
+        },
+        /** ServerLongSum : OP sessionId idPosOper totalOper opValue, answered by ACK sessionId idPosOper */
+        LONGSUM {
+            @Override
+            void request(ByteBuffer buff, long seq, int size) {
+                buff.put(OP);
+                buff.putLong(seq >>> SESSION_BITS);
+                buff.putLong(seq & (SESSION_OPS - 1));
+                buff.putLong(SESSION_OPS);
+                buff.putLong(seq);
+            }
+
+            @Override
+            long response(ByteBuffer buff) {
+                if (buff.remaining() < Byte.BYTES + 2 * Long.BYTES || buff.get() != ACK) {
+                    return -1;      // RES of a complete session
+                }
+                return buff.getLong() << SESSION_BITS | buff.getLong();
+            }
+        },
+        /** ServerEchoPlus : any bytes, answered by these bytes plus one */
+        ECHOPLUS {
+            @Override
+            void request(ByteBuffer buff, long seq, int size) {
+                buff.putLong(seq);
+                fill(buff, size);
+            }
+
+            @Override
+            long response(ByteBuffer buff) {
+                if (buff.remaining() < Long.BYTES) {
+                    return -1;
+                }
+                var seq = 0L;
+                for (var i = 0; i < Long.BYTES; i++) {
+                    seq = seq << 8 | (byte) (buff.get() - 1) & 0xFF;
+                }
+                return seq;
+            }
+        },
+        /** ServerEchoNonBlocking, ServerEchoMultiPort : any bytes, echoed */
+        ECHO {
+            @Override
+            void request(ByteBuffer buff, long seq, int size) {
+                buff.putLong(seq);
+                fill(buff, size);
+            }
+
+            @Override
+            long response(ByteBuffer buff) {
+                return buff.remaining() < Long.BYTES ? -1 : buff.getLong();
+            }
+        };
+
+        /**
+         * Writes in buff the request number seq of a socket, of about size bytes
+         */
+        abstract void request(ByteBuffer buff, long seq, int size);
+
+        /**
+         * @return the number of the request answered by the response in buff, -1 if it answers none
+         */
+        abstract long response(ByteBuffer buff);
+
+        private static void fill(ByteBuffer buff, int size) {
+            for (var i = buff.position(); i < size; i++) {
+                buff.put((byte) ('a' + i % 26));
+            }
+        }
+    }
+
+    private static final int BUFFER_SIZE = 2048;
+    private static final int WINDOW = 1 << 12;          // requests of a socket waiting for their response
+    private static final int SESSION_BITS = 12;
+    private static final long SESSION_OPS = 1L << SESSION_BITS;
+    private static final byte OP = 1;
+    private static final byte ACK = 2;
+
+    /**
+     * A local socket and its requests waiting for a response
+     */
+    private static final class Flow {
+        private final SelectionKey key;
+        private final DatagramChannel dc;
+        private final long[] scheduled = new long[WINDOW];    // time of request seq at seq % WINDOW
+        private final long[] seqs = new long[WINDOW];         // seq of this request, -1 once answered
+        private long nextSeq;
+
+        private Flow(SelectionKey key) {
+            this.key = key;
+            this.dc = (DatagramChannel) key.channel();
+            Arrays.fill(seqs, -1);
+        }
+    }
+
+    /**
+     * Sockets and results of a thread
+     */
+    private final class Worker {
+        private final Selector selector;
+        private final Flow[] flows;
+        private final ByteBuffer sendBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final ByteBuffer receiveBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private long sent;
+        private long answered;
+        private long delayed;       // sends retried because the socket buffer was full
+        private long unsent;        // requests scheduled before the end but not sent before the deadline
+        private long late;          // duplicates and responses after their slot was reused
+        private long invalid;
+        private Flow waiting;       // flow whose socket buffer is full, null if none
+
+        private Worker(int firstSocket, int nbSockets) throws IOException {
+            selector = Selector.open();
+            flows = new Flow[nbSockets];
+            for (var i = 0; i < nbSockets; i++) {
+                var dc = DatagramChannel.open();
+                dc.connect(new InetSocketAddress(host, port + (firstSocket + i) % nbPorts));
+                dc.configureBlocking(false);
+                var key = dc.register(selector, SelectionKey.OP_READ);
+                flows[i] = new Flow(key);
+                key.attach(flows[i]);
+            }
+        }
+
+        /**
+         * Sends the next request of flow, scheduled at time
+         * @return false if the socket buffer is full, the request is then to be sent again when it is writable
+         */
+        private boolean send(Flow flow, long time) throws IOException {
+            var seq = flow.nextSeq;
+            sendBuff.clear();
+            target.request(sendBuff, seq, size);
+            sendBuff.flip();
+            try {
+                if (flow.dc.write(sendBuff) == 0) {
+                    return false;
+                }
+            } catch (PortUnreachableException e) {
+                // counted as lost
+            }
+            var slot = (int) (seq % WINDOW);
+            flow.scheduled[slot] = time;
+            flow.seqs[slot] = seq;
+            flow.nextSeq++;
+            sent++;
+            return true;
+        }
+
+        private void receive(Flow flow) throws IOException {
+            while (true) {
+                receiveBuff.clear();
+                try {
+                    if (flow.dc.read(receiveBuff) <= 0) {
+                        return;
+                    }
+                } catch (PortUnreachableException e) {
+                    return;
+                }
+                var now = System.nanoTime();
+                receiveBuff.flip();
+                var seq = target.response(receiveBuff);
+                if (seq < 0) {
+                    if (target != Target.LONGSUM) {
+                        invalid++;
+                    }
+                    continue;
+                }
+                var slot = (int) (seq % WINDOW);
+                if (flow.seqs[slot] != seq) {
+                    late++;
+                    continue;
+                }
+                flow.seqs[slot] = -1;
+                histogram.record(now - flow.scheduled[slot]);
+                answered++;
+            }
+        }
+
+        private void treatKey(SelectionKey key) {
+            try {
+                if (key.isValid() && key.isWritable()) {      // the waiting request is sent again by run
+                    key.interestOps(SelectionKey.OP_READ);
+                    waiting = null;
+                }
+                if (key.isValid() && key.isReadable()) {
+                    receive((Flow) key.attachment());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Sends the requests of this thread at rate / nbThreads from start to end, then waits
+         * for the responses until end + timeout
+         */
+        private void run(long start, long end) throws IOException {
+            var interval = 1e9 * nbThreads / rate;
+            var deadline = end + timeout;
+            var next = 0L;          // number of the next request of this thread
+            var current = 0;
+            try {
+                while (true) {
+                    var now = System.nanoTime();
+                    var scheduled = start + (long) (next * interval);
+                    while (waiting == null && scheduled <= now && scheduled < end) {
+                        var flow = flows[current];
+                        if (! send(flow, scheduled)) {      // sent again with the same scheduled time
+                            delayed++;
+                            waiting = flow;
+                            flow.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                            break;
+                        }
+                        current = (current + 1) % flows.length;
+                        next++;
+                        scheduled = start + (long) (next * interval);
+                    }
+                    if (now >= deadline || (scheduled >= end && answered == sent)) {
+                        for (var i = next; start + (long) (i * interval) < end; i++) {
+                            unsent++;
+                        }
+                        break;
+                    }
+                    var wait = (waiting == null && scheduled < end ? scheduled : deadline) - now;
+                    if (wait >= TimeUnit.MILLISECONDS.toNanos(1)) {
+                        selector.select(this::treatKey, TimeUnit.NANOSECONDS.toMillis(wait));
+                    } else {
+                        selector.selectNow(this::treatKey);
+                    }
+                }
+            } catch (UncheckedIOException tunneled) {
+                throw tunneled.getCause();
+            } finally {
+                for (var flow : flows) {
+                    flow.dc.close();
+                }
+                selector.close();
+            }
+        }
+    }
+
+    private final Target target;
+    private final String host;
+    private final int port;
+    private final int nbPorts;
+    private final int nbSockets;
+    private final int nbThreads;
+    private final long rate;
+    private final int size;
+    private final long timeout;
+
+    /**
+     * @param nbPorts : the sockets are spread over the ports port to port + nbPorts - 1
+     * @param rate : requests per second, for all the sockets
+     * @param size : size of the requests in bytes, ignored for LONGSUM
+     * @param timeoutMillis : time to wait for the responses after the last request
+     */
+    public UDPLoadGenerator(Target target, String host, int port, int nbPorts, int nbSockets, int nbThreads,
+                            long rate, int size, long timeoutMillis) {
+        if (nbPorts <= 0 || nbSockets <= 0 || nbThreads <= 0 || rate <= 0 || timeoutMillis < 0) {
+            throw new IllegalArgumentException("Ports, sockets, threads and rate must be strictly positive");
+        }
+        if (size < Long.BYTES || size > BUFFER_SIZE) {
+            throw new IllegalArgumentException("Size must be between " + Long.BYTES + " and " + BUFFER_SIZE);
+        }
+        this.target = target;
+        this.host = host;
+        this.port = port;
+        this.nbPorts = nbPorts;
+        this.nbSockets = nbSockets;
+        this.nbThreads = Math.min(nbThreads, nbSockets);
+        this.rate = rate;
+        this.size = size;
+        this.timeout = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Runs the load for durationMillis and prints the results
+     */
+    public void run(long durationMillis) throws IOException, InterruptedException {
+        var workers = new ArrayList<Worker>();
+        for (var i = 0; i < nbThreads; i++) {
+            var first = i * nbSockets / nbThreads;
+            workers.add(new Worker(first, (i + 1) * nbSockets / nbThreads - first));
+        }
+        var start = System.nanoTime();
+        var end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        var threads = new ArrayList<Thread>();
+        var failures = new ArrayList<IOException>();
+        for (var worker : workers) {
+            var thread = new Thread(() -> {
+                try {
+                    worker.run(start, end);
+                } catch (IOException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        if (! failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        report(workers, durationMillis);
+    }
+
+    private void report(ArrayList<Worker> workers, long durationMillis) {
+        var histogram = new LatencyHistogram();
+        long sent = 0, answered = 0, delayed = 0, unsent = 0, late = 0, invalid = 0;
+        for (var worker : workers) {
+            histogram.add(worker.histogram);
+            sent += worker.sent;
+            answered += worker.answered;
+            delayed += worker.delayed;
+            unsent += worker.unsent;
+            late += worker.late;
+            invalid += worker.invalid;
+        }
+        var scheduled = sent + unsent;
+        var lost = scheduled - answered;
+        System.out.println(String.format(Locale.ROOT, "%s on %s:%d-%d, %d sockets, %d threads, %d requests/s for %d ms",
+                target, host, port, port + nbPorts - 1, nbSockets, nbThreads, rate, durationMillis));
+        System.out.println(String.format(Locale.ROOT, "sent %d (%d requests/s), answered %d, lost %d (%.3f %%) "
+                        + "of which %d never sent, delayed by a full socket %d, late or duplicate %d, invalid %d",
+                sent, sent * 1000 / Math.max(durationMillis, 1), answered, lost,
+                scheduled == 0 ? 0 : 100.0 * lost / scheduled, unsent, delayed, late, invalid));
+        System.out.println(String.format(Locale.ROOT, "latency (us) : mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, "
+                        + "p99.9 %.1f, max %.1f",
+                histogram.mean() / 1e3, micros(histogram, 50), micros(histogram, 90), micros(histogram, 99),
+                micros(histogram, 99.9), histogram.max() / 1e3));
+    }
+
+    private static double micros(LatencyHistogram histogram, double percentile) {
+        return histogram.valueAtPercentile(percentile) / 1e3;
+    }
+
+    private static void usage() {
+        System.out.println("Usage : UDPLoadGenerator <UPPER|LONGSUM|ECHOPLUS|ECHO> host port requests/s duration-ms"
+                + " [-ports n] [-sockets n] [-threads n] [-size bytes] [-timeout ms]");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 5) {
+            usage();
+            return;
+        }
+        var target = Target.valueOf(args[0].toUpperCase(Locale.ROOT));
+        var host = args[1];
+        var port = Integer.parseInt(args[2]);
+        var rate = Long.parseLong(args[3]);
+        var duration = Long.parseLong(args[4]);
+        var nbPorts = 1;
+        var nbSockets = 16;
+        var nbThreads = 1;
+        var size = 32;
+        var timeout = 1_000L;
+        for (var i = 5; i < args.length; i++) {
+            if (args[i].equals("-ports") && i + 1 < args.length) {
+                nbPorts = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-sockets") && i + 1 < args.length) {
+                nbSockets = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-threads") && i + 1 < args.length) {
+                nbThreads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-size") && i + 1 < args.length) {
+                size = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-timeout") && i + 1 < args.length) {
+                timeout = Long.parseLong(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        new UDPLoadGenerator(target, host, port, nbPorts, nbSockets, nbThreads, rate, size, timeout).run(duration);
+    }
+}
@@ -0,0 +1,59 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Direct buffers shared by the ReplyRings of a selector.
+ * <p>
+ * The buffers are allocated on demand, up to maxBuffers, and reused once given back, so the memory
+ * follows the responses actually waiting and not the number of rings. Not thread-safe, a pool belongs
+ * to the thread of its selector.
+ */
+public class BufferPool {
+    private final ByteBuffer[] free;
+    private final int bufferSize;
+    private int nbFree;
+    private int nbAllocated;
+
+    /**
+     * @param maxBuffers : maximum number of buffers allocated
+     * @param bufferSize : size of each buffer
+     */
+    public BufferPool(int maxBuffers, int bufferSize) {
+        if (maxBuffers <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Number of buffers and buffer size must be strictly positive");
+        }
+        free = new ByteBuffer[maxBuffers];
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @return true if all the buffers are in use
+     */
+    public boolean isExhausted() {
+        return nbFree == 0 && nbAllocated == free.length;
+    }
+
+    /**
+     * @return a buffer, the pool must not be exhausted
+     */
+    public ByteBuffer take() {
+        if (nbFree > 0) {
+            var buffer = free[--nbFree];
+            free[nbFree] = null;
+            return buffer;
+        }
+        if (nbAllocated == free.length) {
+            throw new IllegalStateException("Pool is exhausted");
+        }
+        nbAllocated++;
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives back a buffer returned by take
+     */
+    public void give(ByteBuffer buffer) {
+        free[nbFree++] = buffer;
+    }
+}
@@ -0,0 +1,128 @@
+package fr.upem.net.udp.nonblocking;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Objects;
+
+/**
+ * Bounded queue of the responses waiting to be sent on a channel.
+ * <p>
+ * The buffers are direct, either allocated once by the ring or taken from a BufferPool shared by the
+ * rings of a selector when a response is queued, and given back once it is sent. A datagram is received
+ * directly into the free buffer returned by tail, and queued with push once its response is ready, so a
+ * server keeps reading while its responses wait for the socket. Not thread-safe, a ring belongs to the
+ * thread of its selector.
+ */
+public class ReplyRing {
+    private final ByteBuffer[] buffers;
+    private final SocketAddress[] destinations;
+    private final BufferPool pool;      // null if the ring owns its buffers
+    private int head;       // index of the oldest response
+    private int size;
+
+    /**
+     * @param capacity : maximum number of responses waiting
+     * @param bufferSize : maximum size of a datagram
+     */
+    public ReplyRing(int capacity, int bufferSize) {
+        if (capacity <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Capacity and buffer size must be strictly positive");
+        }
+        buffers = new ByteBuffer[capacity];
+        destinations = new SocketAddress[capacity];
+        pool = null;
+        for (var i = 0; i < capacity; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+        }
+    }
+
+    /**
+     * @param capacity : maximum number of responses waiting
+     * @param pool : the pool lending the buffers of the responses waiting
+     */
+    public ReplyRing(int capacity, BufferPool pool) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be strictly positive");
+        }
+        buffers = new ByteBuffer[capacity];
+        destinations = new SocketAddress[capacity];
+        this.pool = Objects.requireNonNull(pool);
+    }
+
+    private int tailIndex() {
+        return (head + size) % buffers.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if no response can be queued, for lack of room in the ring or of buffer in the pool
+     */
+    public boolean isFull() {
+        return size == buffers.length || (buffers[tailIndex()] == null && pool.isExhausted());
+    }
+
+    /**
+     * @return the cleared buffer of the next response, the ring must not be full
+     */
+    public ByteBuffer tail() {
+        if (isFull()) {
+            throw new IllegalStateException("Ring is full");
+        }
+        var index = tailIndex();
+        if (buffers[index] == null) {
+            buffers[index] = pool.take();
+        }
+        return buffers[index].clear();
+    }
+
+    /**
+     * Gives back to the pool the buffer returned by tail when no response was pushed in it
+     */
+    public void cancelTail() {
+        if (pool == null || size == buffers.length) {
+            return;
+        }
+        var index = tailIndex();
+        if (buffers[index] != null) {
+            pool.give(buffers[index]);
+            buffers[index] = null;
+        }
+    }
+
+    /**
+     * Queues the buffer returned by tail, flipped, as a response to destination
+     */
+    public void push(SocketAddress destination) {
+        if (isFull()) {
+            throw new IllegalStateException("Ring is full");
+        }
+        destinations[tailIndex()] = destination;
+        size++;
+    }
+
+    /**
+     * Sends the queued responses in order, until the ring is empty or the socket buffer is full
+     * @return true if all the responses have been sent
+     */
+    public boolean send(DatagramChannel dc) throws IOException {
+        while (size > 0) {
+            var buff = buffers[head];
+            if (dc.send(buff, destinations[head]) == 0 && buff.hasRemaining()) {
+                return false;       // not sent, an empty datagram returns 0 too but has no remaining
+            }
+            destinations[head] = null;
+            if (pool != null) {
+                pool.give(buff);
+                buffers[head] = null;
+            }
+            head = (head + 1) % buffers.length;
+            size--;
+        }
+        return true;
+    }
+}
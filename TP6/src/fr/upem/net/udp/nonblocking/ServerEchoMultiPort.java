@@ -7,69 +7,241 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Echo server listening on a range of ports. Each port queues its responses in its own ReplyRing, so its
+ * requests are still read while responses wait for the socket, and dropped when the ring is full. The
+ * buffers of the rings are taken from a BufferPool per selector, so the memory used does not depend on the
+ * width of the range.
+ * <p>
+ * The ports are dealt round-robin to nbThreads selectors, each served by its own thread, so that a wide
+ * range of ports uses all the cores. Every port counts its received and dropped requests, and the load
+ * of the threads and of the busiest ports is logged every REPORT_PERIOD_MILLIS while there is traffic.
+ * If one thread fails, the others are stopped and serve throws its exception.
+ */
 public class ServerEchoMultiPort {
     private final static int BUFFER_SIZE = 1024;
+    private final static int RING_SIZE = 16;        // per port
+    private final static int POOL_SIZE = 1024;      // buffers per selector, shared by its ports
+    private final static int MAX_BATCH = 64;
+    private final static long REPORT_PERIOD_MILLIS = 1_000;
+    private final static int BUSIEST_PORTS = 5;
     private final static Logger logger = Logger.getLogger(ServerEchoMultiPort.class.getName());
 
     static class Context {
-        private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-        private InetSocketAddress exp;
+        private final ReplyRing ring;
+        private final ByteBuffer dropBuff;      // shared by the contexts of a selector
+        private final int port;
+        // only written by the thread of the selector, read by the reporter
+        private volatile long received;
+        private volatile long dropped;
         private SelectionKey key;
         private DatagramChannel dc;
 
-        public Context(SelectionKey key) {
+        public Context(SelectionKey key, int port, ByteBuffer dropBuff, BufferPool pool) {
             Objects.requireNonNull(key);
             this.dc = (DatagramChannel) key.channel();
             this.key = key;
+            this.port = port;
+            this.dropBuff = Objects.requireNonNull(dropBuff);
+            this.ring = new ReplyRing(RING_SIZE, pool);
         }
 
         public void doRead() throws  IOException {
-            buff.clear();
-            exp = (InetSocketAddress) dc.receive(buff);
-            buff.flip();
-            if (exp != null) {
-                key.interestOps(SelectionKey.OP_WRITE);
-            }
-            else {
-                logger.warning("Selector gave a bad hint (OP_WRITE)");
+            for (var i = 0; i < MAX_BATCH; i++) {
+                if (ring.isFull()) {
+                    ring.send(dc);
+                }
+                if (ring.isFull()) {    // no room for the response, the socket buffer is full
+                    if (dc.receive(dropBuff.clear()) == null) {
+                        break;
+                    }
+                    received++;
+                    dropped++;
+                    continue;
+                }
+                var buff = ring.tail();
+                var exp = dc.receive(buff);
+                if (exp == null) {
+                    ring.cancelTail();
+                    break;
+                }
+                received++;
+                buff.flip();
+                ring.push(exp);
             }
+            doWrite();
         }
 
         public void doWrite() throws IOException {
-            dc.send(buff, exp);
-            if (! buff.hasRemaining()) {
+            if (ring.send(dc)) {
                 key.interestOps(SelectionKey.OP_READ);
-            }
-            else {
-                logger.warning("Selector gave a bad hint (OP_READ)");
+            } else {    // socket buffer full, keep reading and send the rest when writable
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
             }
         }
     }
 
-    private final Selector selector;
+    private final Selector[] selectors;
+    private final DatagramChannel[] channels;   // channel of port beginPort + i at i
+    private final Context[] contexts;       // context of port beginPort + i at i, served by selectors[i % nbThreads]
     private final int beginPort, endPort;
 
     public ServerEchoMultiPort(int beginPort, int endPort) throws IOException {
+        this(beginPort, endPort, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param nbThreads : number of selector threads, at most one per port
+     */
+    public ServerEchoMultiPort(int beginPort, int endPort, int nbThreads) throws IOException {
         if (beginPort <= 0 || endPort <= 0 || endPort <= beginPort) {
             throw new IllegalArgumentException("Incorrect range of ports");
         }
+        if (nbThreads <= 0) {
+            throw new IllegalArgumentException("Number of threads must be strictly positive");
+        }
         this.beginPort = beginPort;
         this.endPort = endPort;
-        selector = Selector.open();
+        selectors = new Selector[Math.min(nbThreads, endPort - beginPort + 1)];
+        channels = new DatagramChannel[endPort - beginPort + 1];
+        contexts = new Context[endPort - beginPort + 1];
+        try {
+            open();
+        } catch (IOException | RuntimeException e) {     // e.g. a port already bound, release what was opened
+            closeAll();
+            throw e;
+        }
+    }
+
+    private void open() throws IOException {
+        for (var i = 0; i < selectors.length; i++) {
+            selectors[i] = Selector.open();
+        }
+        var dropBuffs = new ByteBuffer[selectors.length];
+        var pools = new BufferPool[selectors.length];
+        for (var i = 0; i < dropBuffs.length; i++) {
+            dropBuffs[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            pools[i] = new BufferPool(POOL_SIZE, BUFFER_SIZE);
+        }
         for (int port = beginPort ; port <= endPort ; ++port) {
+            var i = port - beginPort;
             DatagramChannel dc = DatagramChannel.open();
+            channels[i] = dc;
             dc.bind(new InetSocketAddress(port));
             dc.configureBlocking(false);
-            SelectionKey key = dc.register(selector, SelectionKey.OP_READ);
-            key.attach(new Context(key));
+            SelectionKey key = dc.register(selectors[i % selectors.length], SelectionKey.OP_READ);
+            contexts[i] = new Context(key, port, dropBuffs[i % selectors.length], pools[i % selectors.length]);
+            key.attach(contexts[i]);
+        }
+    }
+
+    /**
+     * Closes the channels and the selectors, those not opened yet are skipped
+     */
+    private void closeAll() {
+        for (var channel : channels) {
+            try {
+                if (channel != null) channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+        for (var selector : selectors) {
+            try {
+                if (selector != null) selector.close();
+            } catch (IOException e) {
+                // ignore
+            }
         }
     }
 
+    /**
+     * Starts a thread per selector and waits for them. Interrupting the calling thread stops the server.
+     * The channels and the selectors are closed when serve returns, the server can not be served again.
+     * @throws IOException the exception of the first selector thread that failed, after the others are stopped
+     */
     public void serve() throws IOException {
-        logger.info("Server started on ports from " + beginPort + " to " + endPort);
+        logger.info("Server started on ports from " + beginPort + " to " + endPort + " with "
+                + selectors.length + " threads");
+        var failure = new AtomicReference<IOException>();
+        var failed = new CountDownLatch(1);
+        var threads = new Thread[selectors.length];
+        for (var i = 0; i < threads.length; i++) {
+            var selector = selectors[i];
+            threads[i] = new Thread(() -> {
+                try {
+                    selectLoop(selector);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Unexpected stop of a selector thread, stopping the server", e);
+                    failure.compareAndSet(null, e);
+                    failed.countDown();
+                }
+            });
+            threads[i].start();
+        }
+        var reporter = new Thread(() -> {
+            try {
+                reportLoop();
+            } catch (InterruptedException e) {
+                // server stopped
+            }
+        });
+        reporter.setDaemon(true);
+        reporter.start();
+        try {
+            failed.await();     // the selector threads only stop on a failure
+        } catch (InterruptedException e) {
+            logger.info("Server has been stopped");
+        } finally {
+            reporter.interrupt();
+            for (var thread : threads) {
+                thread.interrupt();
+            }
+            joinAll(threads);
+            closeAll();
+        }
+        var dropped = 0L;
+        for (var context : contexts) {
+            dropped += context.dropped;
+        }
+        logger.info("Server stopped, " + dropped + " requests dropped");
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Waits for the threads to end, even if the calling thread is interrupted meanwhile, so that the
+     * selectors are no longer used when they are closed
+     */
+    private static void joinAll(Thread[] threads) {
+        var interrupted = false;
+        for (var thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void selectLoop(Selector selector) throws IOException {
         while (! Thread.interrupted()) {
             try {
                 selector.select(this::treatKey);
@@ -79,6 +251,47 @@ public class ServerEchoMultiPort {
         }
     }
 
+    /**
+     * Logs the datagrams/s received by each thread and by the busiest ports, every REPORT_PERIOD_MILLIS
+     * while there is traffic
+     */
+    private void reportLoop() throws InterruptedException {
+        var lastReceived = new long[contexts.length];
+        var lastDropped = 0L;
+        var lastTime = System.nanoTime();
+        while (! Thread.interrupted()) {
+            Thread.sleep(REPORT_PERIOD_MILLIS);
+            var time = System.nanoTime();
+            var elapsed = time - lastTime;
+            lastTime = time;
+            var rates = new long[contexts.length];
+            var threadRates = new long[selectors.length];
+            var total = 0L;
+            var dropped = 0L;
+            for (var i = 0; i < contexts.length; i++) {
+                var received = contexts[i].received;
+                rates[i] = (received - lastReceived[i]) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+                lastReceived[i] = received;
+                threadRates[i % selectors.length] += rates[i];
+                total += rates[i];
+                dropped += contexts[i].dropped;
+            }
+            var droppedRate = (dropped - lastDropped) * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            lastDropped = dropped;
+            if (total == 0) {
+                continue;
+            }
+            var busiest = IntStream.range(0, contexts.length).boxed()
+                    .filter(i -> rates[i] > 0)
+                    .sorted(Comparator.comparingLong(i -> -rates[i]))
+                    .limit(BUSIEST_PORTS)
+                    .map(i -> contexts[i].port + " : " + rates[i])
+                    .collect(Collectors.joining(", "));
+            logger.info(total + " datagrams/s, " + droppedRate + " dropped/s\nper thread : "
+                    + Arrays.toString(threadRates) + "\nbusiest ports : " + busiest);
+        }
+    }
+
     private void treatKey(SelectionKey key){
         try {
             if (key.isValid() && key.isWritable()) {
@@ -95,15 +308,17 @@ public class ServerEchoMultiPort {
     }
 
     public static void usage() {
-        System.out.println("Usage : ServerEchoMultiPort <beginning_port> <ending_port>");
+        System.out.println("Usage : ServerEchoMultiPort <beginning_port> <ending_port> [nb_threads]");
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
+        if (args.length != 2 && args.length != 3) {
             usage();
             return;
         }
-        ServerEchoMultiPort server = new ServerEchoMultiPort(Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+        var nbThreads = args.length == 3 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        ServerEchoMultiPort server = new ServerEchoMultiPort(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                nbThreads);
         server.serve();
     }
 
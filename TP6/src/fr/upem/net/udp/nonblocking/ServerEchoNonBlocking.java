@@ -3,22 +3,28 @@ package fr.upem.net.udp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.logging.Logger;
 
+/**
+ * Echo server. The requests are read while responses are waiting to be sent : they are queued in a
+ * ReplyRing, and dropped when it is full.
+ */
 public class ServerEchoNonBlocking {
 
     private static final Logger logger = Logger.getLogger(ServerEchoNonBlocking.class.getName());
 
     private final DatagramChannel dc;
     private final Selector selector;
-    private final int BUFFER_SIZE = 1024;
-    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private SocketAddress exp;
+    private static final int BUFFER_SIZE = 1024;
+    private static final int RING_SIZE = 128;
+    private static final int MAX_BATCH = 64;
+    private final ReplyRing ring = new ReplyRing(RING_SIZE, BUFFER_SIZE);
+    private final ByteBuffer dropBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long dropped;
     private int port;
 
     public ServerEchoNonBlocking(int port) throws IOException {
@@ -40,6 +46,7 @@ public class ServerEchoNonBlocking {
                 throw tunneled.getCause();
             }
         }
+        logger.info("ServerEcho stopped, " + dropped + " requests dropped");
     }
 
     private void treatKey(SelectionKey key) {
@@ -57,22 +64,35 @@ public class ServerEchoNonBlocking {
     }
 
     private void doRead(SelectionKey key) throws IOException {
-        buff.clear();
-        exp = dc.receive(buff);
-        if (exp == null) {
-            return;
+        for (var i = 0; i < MAX_BATCH; i++) {
+            if (ring.isFull()) {
+                ring.send(dc);
+            }
+            if (ring.isFull()) {    // no room for the response, the socket buffer is full
+                if (dc.receive(dropBuff.clear()) == null) {
+                    break;
+                }
+                dropped++;
+                continue;
+            }
+            var buff = ring.tail();
+            var exp = dc.receive(buff);
+            if (exp == null) {
+                break;
+            }
+            buff.flip();
+            ring.push(exp);
         }
-        buff.flip(); // on flip ici pour etre sûr de le faire qu'a la reception
-        key.interestOps(SelectionKey.OP_WRITE);
-	 }
+        doWrite(key);
+    }
 
     private void doWrite(SelectionKey key) throws IOException {
-        dc.send(buff, exp);
-        if (buff.hasRemaining()) { // si l'envoi a raté
-   		    return;
+        if (ring.send(dc)) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {    // socket buffer full, keep reading and send the rest when writable
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
-   		key.interestOps(SelectionKey.OP_READ);
-	}
+    }
 
     public static void usage() {
         System.out.println("Usage : ServerEcho port");
@@ -3,7 +3,6 @@ package fr.upem.net.udp.nonblocking;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
-import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
@@ -11,14 +10,25 @@ import java.nio.channels.Selector;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+/**
+ * Server answering each datagram with its bytes incremented.
+ * <p>
+ * Each wakeup drains up to MAX_BATCH datagrams, received directly into the buffers of a ReplyRing where
+ * they are transformed in place. The responses are sent as soon as the socket accepts them, and OP_WRITE
+ * is only requested while some are waiting. When the ring is full, requests are read and dropped.
+ */
 public class ServerEchoPlus {
     private final static Logger logger = Logger.getLogger(ServerEchoPlus.class.getName());
     private final static int BUFFER_SIZE = 1024;
+    private final static int RING_SIZE = 128;
+    private final static int MAX_BATCH = 64;
 
     private final Selector selector;
     private final DatagramChannel dc;
-    private final ByteBuffer buff = ByteBuffer.allocateDirect(BUFFER_SIZE);
-    private SocketAddress exp;
+    private final ReplyRing ring = new ReplyRing(RING_SIZE, BUFFER_SIZE);
+    private final ByteBuffer dropBuff = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+    private long dropped;
     private int port;
 
     public ServerEchoPlus(int port) throws IOException {
@@ -39,6 +49,7 @@ public class ServerEchoPlus {
                 throw new IOException(tunneled);
             }
         }
+        logger.info("Server stopped, " + dropped + " requests dropped");
     }
 
     private void treatKey(SelectionKey key) {
@@ -55,38 +66,49 @@ public class ServerEchoPlus {
     }
 
     private void doRead(SelectionKey key) throws IOException {
-        buff.clear();
-        exp = dc.receive(buff);
-        if (exp == null) {
-            return;
+        for (var i = 0; i < MAX_BATCH; i++) {
+            if (ring.isFull()) {
+                ring.send(dc);
+            }
+            if (ring.isFull()) {    // no room for the response, the socket buffer is full
+                if (dc.receive(dropBuff.clear()) == null) {
+                    break;
+                }
+                dropped++;
+                continue;
+            }
+            var buff = ring.tail();
+            var exp = dc.receive(buff);
+            if (exp == null) {
+                break;
+            }
+            buff.flip();
+            incBuffer(buff);
+            ring.push(exp);
         }
-        buff.flip();
-        incBuffer();
-        key.interestOps(SelectionKey.OP_WRITE);
+        doWrite(key);
     }
 
     private void doWrite(SelectionKey key) throws IOException {
-
-        dc.send(buff, exp);
-        if (buff.hasRemaining()) {
-            return;
+        if (ring.send(dc)) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
         }
-        key.interestOps(SelectionKey.OP_READ);
     }
 
-    private void incBuffer() {
-        byte[] inc = new byte[BUFFER_SIZE];
-        int size, i = 0;
-        while (buff.hasRemaining()) {
-            inc[i] = (byte) ((buff.get() + 1) % 255);
-            ++i;
-        }
-        size = i;
-        buff.clear();
-        for (i = 0 ; i < size ; ++i) {
-            buff.put(inc[i]);
+    /**
+     * Increments in place the bytes of buff between its position and its limit,
+     * with bulk copies through an array the loop can be vectorized on
+     */
+    private void incBuffer(ByteBuffer buff) {
+        var start = buff.position();
+        var size = buff.remaining();
+        buff.get(start, bytes, 0, size);
+        for (var i = 0; i < size; i++) {
+            bytes[i] = (byte) ((bytes[i] + 1) % 255);
         }
-        buff.flip();
+        buff.put(start, bytes, 0, size);
     }
 
     public static void usage() {
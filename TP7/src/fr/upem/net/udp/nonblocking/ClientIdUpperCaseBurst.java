@@ -2,17 +2,24 @@ package fr.upem.net.udp.nonblocking;
 
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 public class ClientIdUpperCaseBurst {
@@ -20,49 +27,231 @@ public class ClientIdUpperCaseBurst {
     private static Logger logger = Logger.getLogger(ClientIdUpperCaseBurst.class.getName());
     private static final Charset UTF8 = StandardCharsets.UTF_8;
     private static final int BUFFER_SIZE = 1024;
+    private static final int INITIAL_WINDOW = 8;
+    private static final int MIN_WINDOW = 2;
+    private static final int MAX_WINDOW = 1024;
+    private static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long MAX_RTO = TimeUnit.SECONDS.toNanos(10);
 
-    private enum State {SENDING, RECEIVING, FINISHED};
-
-    private final List<String> lines;
+    private final ByteBuffer datagrams;            // direct arena holding the datagram (id + line) of every id
+    private final int[] offsets;                    // datagram of id is at [offsets[id], offsets[id + 1])
+    private final MappedLines mappedLines;          // streaming mode : lines and responses stay in the files
+    private final ByteBuffer sendBuffer;            // streaming mode only
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetDecoder decoder = UTF8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer decoded = CharBuffer.allocate(BUFFER_SIZE);
+    private final Consumer<SelectionKey> keyTreatment = this::treatKey;
     private final String[] upperCaseLines;
-    private final int timeout;
-    private final InetSocketAddress serverAddress;
     private final DatagramChannel dc;
     private final Selector selector;
     private final SelectionKey uniqueKey;
+    private final long firstId;                     // ids on the wire are firstId + index, see shards
     private final int nbLines;
     private final BitSet received;
-    private long lastSend, lastReceived;
-    private int currentId;
     private int nbReceived;
 
-    private State state;
+    // Sliding window : ids are sent in order, the ones whose RTO expires are queued for retransmission
+    private final long[] sendTimes;                 // nanoTime of the last send of each id in flight, 0 otherwise
+    private final BitSet retransmitted;             // RTT is not sampled on retransmitted ids (Karn)
+    private final IntQueue inFlight;                // in send order
+    private final IntQueue toRetransmit;
+    private int nbInFlight;
+    private int nextNewId;
+
+    // Congestion control (AIMD) and RTO estimation (Jacobson/Karels), times in nanoseconds
+    private double window = INITIAL_WINDOW;
+    private double threshold = MAX_WINDOW;
+    private double srtt = -1;
+    private double rttvar;
+    private long rto;
+    private long lastDecrease;
+
+    private long nbSent;
+    private long nbRetransmissions;
+    private long nbDatagramsReceived;
+    private long nbReadWakeups;
+    private long nbWriteWakeups;
 
     private static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseBurst in-filename out-filename timeout host port"
+                + " [-mapped] [-channels nb] [-ports nb]");
     }
 
+    /**
+     * @param timeout : initial retransmission timeout in milliseconds, until the RTT has been measured
+     */
     public ClientIdUpperCaseBurst(List<String> lines, int timeout, InetSocketAddress serverAddress) throws IOException {
-        Objects.requireNonNull(lines);
+        this(0, lines.size(), lines, null, timeout, serverAddress);
+    }
+
+    /**
+     * Streaming mode : the lines are read from mappedLines and the responses written to it
+     *
+     * @param timeout : initial retransmission timeout in milliseconds, until the RTT has been measured
+     */
+    public ClientIdUpperCaseBurst(MappedLines mappedLines, int timeout, InetSocketAddress serverAddress) throws IOException {
+        this(0, Math.toIntExact(mappedLines.count()), null, mappedLines, timeout, serverAddress);
+    }
+
+    /**
+     * @param firstId : id of the first line, the client sends the ids [firstId, firstId + nbLines)
+     * @param lines : the lines of these ids, null in streaming mode
+     */
+    private ClientIdUpperCaseBurst(long firstId, int nbLines, List<String> lines, MappedLines mappedLines, int timeout,
+                                   InetSocketAddress serverAddress) throws IOException {
         Objects.requireNonNull(serverAddress);
         if (timeout <= 0) throw new IllegalArgumentException("Timeout should be positive");
-        this.lines = lines;
-        this.nbLines = lines.size();
-        this.timeout = timeout;
+        this.firstId = firstId;
+        this.nbLines = nbLines;
+        this.mappedLines = mappedLines;
+        if (mappedLines == null) {
+            this.offsets = new int[nbLines + 1];
+            this.datagrams = encode(lines, firstId, offsets);
+            this.sendBuffer = null;
+            this.upperCaseLines = new String[nbLines];
+        } else {
+            this.offsets = null;
+            this.datagrams = null;
+            this.sendBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.upperCaseLines = null;
+        }
+        this.inFlight = new IntQueue(nbLines);
+        this.toRetransmit = new IntQueue(nbLines);
+        this.rto = TimeUnit.MILLISECONDS.toNanos(timeout);
         this.received = new BitSet(nbLines);
-        this.upperCaseLines = new String[nbLines];
-        this.serverAddress = serverAddress;
+        this.retransmitted = new BitSet(nbLines);
+        this.sendTimes = new long[nbLines];
         this.dc = DatagramChannel.open();
         dc.configureBlocking(false);
         dc.bind(null);
+        dc.connect(serverAddress);      // datagrams from other senders are filtered out by the channel
         this.selector = Selector.open();
         this.uniqueKey = dc.register(selector, SelectionKey.OP_WRITE);
-        this.state = State.SENDING;
     }
 
 
+    /**
+     * Queue of ids, each id being at most once in the queue
+     */
+    private static class IntQueue {
+        private final int[] elements;
+        private int head;
+        private int size;
+
+        private IntQueue(int capacity) {
+            elements = new int[Math.max(capacity, 1)];
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private int peek() {
+            return elements[head];
+        }
+
+        private int poll() {
+            var element = elements[head];
+            head = (head + 1) % elements.length;
+            size--;
+            return element;
+        }
+
+        private void add(int element) {
+            elements[(head + size) % elements.length] = element;
+            size++;
+        }
+    }
+
+    /**
+     * Encodes once the datagram of every line in a direct buffer
+     *
+     * @param offsets : filled with the start of each datagram, followed by the end of the last one
+     */
+    private static ByteBuffer encode(List<String> lines, long firstId, int[] offsets) {
+        var encoded = new ArrayList<ByteBuffer>(lines.size());
+        var total = 0L;
+        for (var line : lines) {
+            var bb = UTF8.encode(line);
+            encoded.add(bb);
+            total += Long.BYTES + bb.remaining();
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Input too large to be encoded in memory");
+        }
+        var datagrams = ByteBuffer.allocateDirect((int) total);
+        for (var id = 0; id < lines.size(); id++) {
+            offsets[id] = datagrams.position();
+            datagrams.putLong(firstId + id);
+            datagrams.put(encoded.get(id));
+        }
+        offsets[lines.size()] = datagrams.position();
+        return datagrams;
+    }
+
+    /**
+     * Splits the ids in nbChannels contiguous ranges, each one sent by a client with its own
+     * channel (so its own local port and socket buffers), selector and thread.
+     * The client of range k talks to the server port port + k % nbPorts, so that the load is
+     * also spread on the server side when it listens on several consecutive ports.
+     *
+     * @param lines : the lines to send, null in streaming mode
+     */
+    private static List<ClientIdUpperCaseBurst> shards(long nbLines, List<String> lines, MappedLines mappedLines,
+                                                       int nbChannels, int timeout, String host, int port,
+                                                       int nbPorts) throws IOException {
+        var shards = new ArrayList<ClientIdUpperCaseBurst>(nbChannels);
+        var shardSize = Math.max((nbLines + nbChannels - 1) / nbChannels, 1);
+        for (var k = 0; k == 0 || k * shardSize < nbLines; k++) {
+            var first = k * shardSize;
+            var size = (int) Math.min(shardSize, nbLines - first);
+            var serverAddress = new InetSocketAddress(host, port + k % nbPorts);
+            var shardLines = lines == null ? null : lines.subList((int) first, (int) first + size);
+            shards.add(new ClientIdUpperCaseBurst(first, size, shardLines, mappedLines, timeout, serverAddress));
+        }
+        return shards;
+    }
+
+    /**
+     * Runs each client in its own thread and waits for all of them
+     */
+    private static void runAll(List<ClientIdUpperCaseBurst> shards) throws IOException, InterruptedException {
+        if (shards.size() == 1) {
+            shards.get(0).run();
+            return;
+        }
+        var start = System.nanoTime();
+        var failures = new IOException[shards.size()];
+        var threads = new ArrayList<Thread>();
+        for (var k = 0; k < shards.size(); k++) {
+            var shard = shards.get(k);
+            var index = k;
+            var thread = new Thread(() -> {
+                try {
+                    shard.run();
+                } catch (IOException e) {
+                    failures[index] = e;
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        for (var failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        logger.info(String.format("All %d channels done in %d ms",
+                shards.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+    }
+
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
+        if (args.length < 5) {
             usage();
             return;
         }
@@ -72,36 +261,64 @@ public class ClientIdUpperCaseBurst {
         int timeout = Integer.parseInt(args[2]);
         String host = args[3];
         int port = Integer.parseInt(args[4]);
-        InetSocketAddress serverAddress = new InetSocketAddress(host, port);
+        var mapped = false;
+        var nbChannels = 1;
+        var nbPorts = 1;
+        for (var i = 5; i < args.length; i++) {
+            if (args[i].equals("-mapped")) {
+                mapped = true;
+            } else if (args[i].equals("-channels") && i + 1 < args.length) {
+                nbChannels = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-ports") && i + 1 < args.length) {
+                nbPorts = Integer.parseInt(args[++i]);
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (nbChannels <= 0 || nbPorts <= 0) {
+            usage();
+            return;
+        }
+
+        if (mapped) {
+            try (var mappedLines = new MappedLines(Paths.get(inFilename), Paths.get(outFilename))) {
+                runAll(shards(mappedLines.count(), null, mappedLines, nbChannels, timeout, host, port, nbPorts));
+            }
+            return;
+        }
 
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
-        //Create client with the parameters and launch it
-        ClientIdUpperCaseBurst client = new ClientIdUpperCaseBurst(lines, timeout, serverAddress);
-        List<String> upperCaseLines = client.launch();
+        //Create the clients with the parameters and launch them
+        var shards = shards(lines.size(), lines, null, nbChannels, timeout, host, port, nbPorts);
+        runAll(shards);
+        var upperCaseLines = new ArrayList<String>(lines.size());
+        for (var shard : shards) {
+            upperCaseLines.addAll(Arrays.asList(shard.upperCaseLines));
+        }
         Files.write(Paths.get(outFilename), upperCaseLines, UTF8,
                 StandardOpenOption.CREATE,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.TRUNCATE_EXISTING);
     }
 
-    
-    private List<String> launch() throws IOException, InterruptedException {
-        Set<SelectionKey> selectedKeys = selector.selectedKeys();
+    private void run() throws IOException {
+        var start = System.nanoTime();
         while (!isFinished()) {
-            selector.select(updateInterestOps());
-            for (SelectionKey key : selectedKeys) {
-                if (key.isValid() && key.isWritable()) {
-                    doWrite();
-                }
-                if (key.isValid() && key.isReadable()) {
-                    doRead();
-                }
+            checkTimeouts(System.nanoTime());
+            try {
+                selector.select(keyTreatment, updateInterestOps());
+            } catch (UncheckedIOException tunneled) {
+                throw tunneled.getCause();
             }
-            selectedKeys.clear();
         }
         dc.close();
-        return Arrays.asList(upperCaseLines);
+        logger.info(String.format("Received all %d lines from id %d in %d ms : %d datagrams sent, %d retransmissions",
+                nbLines, firstId, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), nbSent, nbRetransmissions));
+        logger.info(String.format("Datagrams per wakeup : %.2f sent (%d wakeups), %.2f received (%d wakeups)",
+                (double) nbSent / Math.max(nbWriteWakeups, 1), nbWriteWakeups,
+                (double) nbDatagramsReceived / Math.max(nbReadWakeups, 1), nbReadWakeups));
     }
 
     /**
@@ -109,81 +326,192 @@ public class ClientIdUpperCaseBurst {
     *
     * @return the timeout for the next select (0 means no timeout)
     */
-    private int updateInterestOps() {
-        var currentTime = System.currentTimeMillis();
-        if (state == State.SENDING) {
-            uniqueKey.interestOps(SelectionKey.OP_WRITE);
-            currentId = received.nextClearBit(currentId);
-            return 0;
+    private long updateInterestOps() {
+        var ops = SelectionKey.OP_READ;
+        if (canSend()) {
+            ops |= SelectionKey.OP_WRITE;
         }
-        if (state == State.RECEIVING && System.currentTimeMillis() - lastSend >= timeout) {
-            uniqueKey.interestOps(SelectionKey.OP_WRITE);
-            currentId = 0;
+        uniqueKey.interestOps(ops);
+        if (inFlight.isEmpty()) {
             return 0;
         }
-        // state == State.RECEIVING
-        uniqueKey.interestOps(SelectionKey.OP_READ);
-        return (int) (timeout - (currentTime - lastSend));
+        var remaining = sendTimes[inFlight.peek()] + rto - System.nanoTime();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining) + 1);
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isWritable()) {
+                doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                doRead();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean canSend() {
+        return nbInFlight < (int) window && (! toRetransmit.isEmpty() || nextNewId < nbLines);
     }
 
     private boolean isFinished() {
-        return state == State.FINISHED;
+        return nbReceived == nbLines;
+    }
+
+    /**
+     * Moves the ids whose RTO has expired from the window to the retransmission queue.
+     * The oldest send is at the head of inFlight, ids already answered are dropped lazily.
+     */
+    private void checkTimeouts(long now) {
+        var lost = false;
+        while (! inFlight.isEmpty()) {
+            int id = inFlight.peek();
+            if (sendTimes[id] == 0) {       // answered since
+                inFlight.poll();
+                continue;
+            }
+            if (now - sendTimes[id] < rto) {
+                break;
+            }
+            inFlight.poll();
+            sendTimes[id] = 0;
+            nbInFlight--;
+            toRetransmit.add(id);
+            lost = true;
+        }
+        if (lost && now - lastDecrease > Math.max(srtt, rto)) {     // at most one decrease per round trip
+            threshold = Math.max(window / 2, MIN_WINDOW);
+            window = threshold;
+            rto = Math.min(rto * 2, MAX_RTO);
+            lastDecrease = now;
+        }
     }
 
     /**
-    * Performs the receptions of packets
+     * Updates the RTO with a new round trip time sample (RFC 6298)
+     */
+    private void sampleRtt(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        rto = Math.min(Math.max((long) (srtt + Math.max(MIN_RTO, 4 * rttvar)), MIN_RTO), MAX_RTO);
+    }
+
+    /**
+    * Performs the receptions of packets : drains the socket until no datagram is pending
     *
     * @throws IOException if I/O error occurs while receiving data
     */
     private void doRead() throws IOException {
-        ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
-        var exp = dc.receive(buff);
-        if (exp == null || ! exp.equals(serverAddress)) { return; }
-        buff.flip();
-        lastReceived = System.currentTimeMillis();
-        long id = buff.getLong();
-        if (id >= 0 && id < nbLines && ! received.get((int) id)) {
-            received.set((int) id);
-            upperCaseLines[(int) id] = UTF8.decode(buff).toString();
-            nbReceived++;
-            System.out.println("Received line id " + id);
+        nbReadWakeups++;
+        while (receiveOne()) {
+            nbDatagramsReceived++;
+        }
+    }
+
+    /**
+     * @return false if no datagram was pending
+     */
+    private boolean receiveOne() throws IOException {
+        receiveBuffer.clear();
+        try {
+            if (dc.read(receiveBuffer) <= 0) { return false; }
+        } catch (PortUnreachableException e) {
+            return false;   // server not started yet, the RTO will trigger retransmissions
+        }
+        receiveBuffer.flip();
+        if (receiveBuffer.remaining() < Long.BYTES) { return true; }
+        long id = receiveBuffer.getLong() - firstId;
+        if (id < 0 || id >= nbLines || received.get((int) id)) {
+            return true;
         }
-        if (nbReceived == nbLines) {
-            System.out.println("Received all lines");
-            state = State.FINISHED;
+        var index = (int) id;
+        if (mappedLines != null) {
+            mappedLines.put(firstId + index, receiveBuffer);
+        } else {
+            decoded.clear();
+            decoder.reset();
+            decoder.decode(receiveBuffer, decoded, true);
+            decoder.flush(decoded);
+            upperCaseLines[index] = decoded.flip().toString();
+        }
+        received.set(index);
+        nbReceived++;
+        if (sendTimes[index] != 0) {
+            if (! retransmitted.get(index)) {
+                sampleRtt(System.nanoTime() - sendTimes[index]);
+            }
+            sendTimes[index] = 0;
+            nbInFlight--;
         }
+        if (window < threshold) {       // slow start
+            window = Math.min(window + 1, MAX_WINDOW);
+        } else {                        // congestion avoidance
+            window = Math.min(window + 1 / window, MAX_WINDOW);
+        }
+        return true;
     }
 
     /**
-    * Tries to send the packets
+    * Sends as many packets as the window and the socket accept
     *
     * @throws IOException if I/O error occurs while sending data
     */
-    private void doWrite() throws IOException { //on devrait commencer par send, donc préparer le buff à la fin pour le prochain envoi
-        ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
-        int id = received.nextClearBit(currentId);
-        if (id == nbLines) {
-            state = State.RECEIVING;
-            return;
+    private void doWrite() throws IOException {
+        nbWriteWakeups++;
+        while (canSend() && sendOne()) {
+            // the datagram counters are updated by sendOne
         }
-        buff.clear();
-        buff.putLong(id);
-        buff.put(UTF8.encode(lines.get(id)));
-        buff.flip();
-        dc.send(buff, serverAddress);
-        if (buff.hasRemaining()) {
-            return;
-        }
-        System.out.println("Sent line nb " + id);
-        currentId = id + 1;
-        lastSend = System.currentTimeMillis();
+    }
 
+    /**
+    * Tries to send the next packet : a timed-out id first, else the next id never sent
+    *
+    * @return false if nothing was sent
+    * @throws IOException if I/O error occurs while sending data
+    */
+    private boolean sendOne() throws IOException {
+        while (! toRetransmit.isEmpty() && received.get(toRetransmit.peek())) {
+            toRetransmit.poll();
+        }
+        var retransmission = ! toRetransmit.isEmpty();
+        if (! retransmission && nextNewId == nbLines) {
+            return false;
+        }
+        int id = retransmission ? toRetransmit.peek() : nextNewId;
+        ByteBuffer datagram;
+        if (mappedLines != null) {
+            datagram = sendBuffer.clear();
+            datagram.putLong(firstId + id);
+            mappedLines.get(firstId + id, datagram);
+            datagram.flip();
+        } else {
+            datagram = datagrams.limit(offsets[id + 1]).position(offsets[id]);
+        }
+        try {
+            if (dc.write(datagram) == 0) {
+                return false;
+            }
+        } catch (PortUnreachableException e) {
+            // server not started yet : considered as lost, the RTO will trigger its retransmission
+        }
+        if (! retransmission) {
+            nextNewId++;
+        } else {
+            toRetransmit.poll();
+            retransmitted.set(id);
+            nbRetransmissions++;
+        }
+        sendTimes[id] = System.nanoTime();
+        inFlight.add(id);
+        nbInFlight++;
+        nbSent++;
+        return true;
     }
 }
-
-
-
-
-
-
-
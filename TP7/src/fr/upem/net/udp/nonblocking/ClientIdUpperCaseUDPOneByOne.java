@@ -27,6 +27,8 @@ public class ClientIdUpperCaseUDPOneByOne {
     private enum State {SENDING, RECEIVING, FINISHED};
 
     private final List<String> lines;
+    private final MappedLines mappedLines;      // streaming mode : lines and responses stay in the files
+    private final long nbLines;
     private final List<String> upperCaseLines = new ArrayList<>();
     private final int timeout;
     private final InetSocketAddress serverAddress;
@@ -42,11 +44,25 @@ public class ClientIdUpperCaseUDPOneByOne {
     private State state;
 
     private static void usage() {
-        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port ");
+        System.out.println("Usage : ClientIdUpperCaseUDPOneByOne in-filename out-filename timeout host port [-mapped]");
     }
 
     public ClientIdUpperCaseUDPOneByOne(List<String> lines, int timeout, InetSocketAddress serverAddress) throws IOException {
+        this(lines, null, lines.size(), timeout, serverAddress);
+    }
+
+    /**
+     * Streaming mode : the lines are read from mappedLines and the responses written to it
+     */
+    public ClientIdUpperCaseUDPOneByOne(MappedLines mappedLines, int timeout, InetSocketAddress serverAddress) throws IOException {
+        this(null, mappedLines, mappedLines.count(), timeout, serverAddress);
+    }
+
+    private ClientIdUpperCaseUDPOneByOne(List<String> lines, MappedLines mappedLines, long nbLines, int timeout,
+                                         InetSocketAddress serverAddress) throws IOException {
         this.lines = lines;
+        this.mappedLines = mappedLines;
+        this.nbLines = nbLines;
         this.timeout = timeout;
         this.serverAddress = serverAddress;
         this.dc = DatagramChannel.open();
@@ -59,7 +75,7 @@ public class ClientIdUpperCaseUDPOneByOne {
 
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
+        if (args.length != 5 && args.length != 6) {
             usage();
             return;
         }
@@ -71,6 +87,17 @@ public class ClientIdUpperCaseUDPOneByOne {
         int port = Integer.parseInt(args[4]);
         InetSocketAddress serverAddress = new InetSocketAddress(host, port);
 
+        if (args.length == 6) {
+            if (! args[5].equals("-mapped")) {
+                usage();
+                return;
+            }
+            try (var mappedLines = new MappedLines(Paths.get(inFilename), Paths.get(outFilename))) {
+                new ClientIdUpperCaseUDPOneByOne(mappedLines, timeout, serverAddress).launch();
+            }
+            return;
+        }
+
         //Read all lines of inFilename opened in UTF-8
         List<String> lines = Files.readAllLines(Paths.get(inFilename), UTF8);
         //Create client with the parameters and launch it
@@ -86,6 +113,9 @@ public class ClientIdUpperCaseUDPOneByOne {
     
     private List<String> launch() throws IOException, InterruptedException {
         Set<SelectionKey> selectedKeys = selector.selectedKeys();
+        if (nbLines == 0) {
+            state = State.FINISHED;
+        }
         while (!isFinished()) {
             System.out.println("State : " + state);
             selector.select(updateInterestOps());
@@ -144,11 +174,16 @@ public class ClientIdUpperCaseUDPOneByOne {
         buff.flip();
         long id = buff.getLong(); //checker la taille
         if (id == currentId) {
-            CharBuffer data = UTF8.decode(buff);
-            System.out.println("Received : " + id + " - " + data.toString());
-            upperCaseLines.add(data.toString());
+            if (mappedLines != null) {
+                System.out.println("Received : " + id);
+                mappedLines.put(id, buff);
+            } else {
+                CharBuffer data = UTF8.decode(buff);
+                System.out.println("Received : " + id + " - " + data.toString());
+                upperCaseLines.add(data.toString());
+            }
             currentId++;
-            if (id >= lines.size() - 1) {
+            if (id >= nbLines - 1) {
                 state = State.FINISHED;
             }
             else {
@@ -167,8 +202,13 @@ public class ClientIdUpperCaseUDPOneByOne {
     private void doWrite() throws IOException {
         ByteBuffer buff = ByteBuffer.allocate(BUFFER_SIZE);
         buff.putLong(currentId);
-        buff.put(UTF8.encode(lines.get(currentId)));
-        System.out.println("Sending: " + currentId + " - " + lines.get(currentId));
+        if (mappedLines != null) {
+            mappedLines.get(currentId, buff);
+            System.out.println("Sending: " + currentId);
+        } else {
+            buff.put(UTF8.encode(lines.get(currentId)));
+            System.out.println("Sending: " + currentId + " - " + lines.get(currentId));
+        }
         buff.flip();
         dc.send(buff, serverAddress);
         if (buff.hasRemaining()) {
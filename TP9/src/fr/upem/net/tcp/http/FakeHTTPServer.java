@@ -3,45 +3,151 @@ package fr.upem.net.tcp.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class FakeHTTPServer {
 
+    /**
+     * How the content given to the server is sent
+     */
+    public enum Encoding {
+        /** the content is sent as is, it must contain the whole response */
+        RAW,
+        /** the content is the body of a response with a Content-Length field */
+        CONTENT_LENGTH,
+        /** the content is the body of a chunked response */
+        CHUNKED
+    }
+
+    /**
+     * Load-simulation settings. The defaults send the whole content at once to a single client.
+     */
+    public static class Options {
+        private int fragmentSize = Integer.MAX_VALUE;
+        private long fragmentDelayMillis;
+        private long firstByteLatencyMillis;
+        private long bytesPerSecond;
+        private Encoding encoding = Encoding.RAW;
+        private int chunkSize = 4096;
+        private int maxConnections = 1;
+
+        /**
+         * @param fragmentSize : maximum number of bytes per write on the socket
+         */
+        public Options fragmentSize(int fragmentSize) {
+            if (fragmentSize <= 0) {
+                throw new IllegalArgumentException("fragmentSize must be positive");
+            }
+            this.fragmentSize = fragmentSize;
+            return this;
+        }
+
+        /**
+         * @param millis : pause after each fragment
+         */
+        public Options fragmentDelay(long millis) {
+            this.fragmentDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param millis : pause before the first byte of each response
+         */
+        public Options firstByteLatency(long millis) {
+            this.firstByteLatencyMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param bytesPerSecond : bandwidth of each connection, 0 for unlimited
+         */
+        public Options bandwidth(long bytesPerSecond) {
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        public Options encoding(Encoding encoding) {
+            this.encoding = encoding;
+            return this;
+        }
+
+        /**
+         * @param chunkSize : size of the chunks in CHUNKED encoding
+         */
+        public Options chunkSize(int chunkSize) {
+            if (chunkSize <= 0) {
+                throw new IllegalArgumentException("chunkSize must be positive");
+            }
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * @param maxConnections : number of connections accepted before the server stops, 0 for no limit.
+         *                       Connections are served concurrently.
+         */
+        public Options maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+    }
+
     private final ServerSocketChannel ss;
     private final int port;
     private final ByteBuffer content;
     private final Thread t;
+    private ExecutorService workers;
 
 
     public FakeHTTPServer(String s, int max) throws IOException {
+        this(s, new Options().fragmentSize(max).fragmentDelay(100));
+    }
+
+    /**
+     * In RAW encoding, the content is written as soon as a client connects.
+     * Otherwise the server waits for a request header before each response and keeps
+     * the connection alive, so it can be used by HTTP clients and load generators.
+     */
+    public FakeHTTPServer(String s, Options options) throws IOException {
         ss = ServerSocketChannel.open();
         ss.bind(null);
         InetSocketAddress address = (InetSocketAddress) ss.getLocalAddress();
         port = address.getPort();
-        content = ByteBuffer.wrap(s.getBytes("UTF-8"));
+        content = response(s.getBytes(StandardCharsets.UTF_8), options);
+        if (options.maxConnections == 1) {
+            this.t = new Thread(() ->
+            {
+                try {
+                    serveConnection(ss.accept(), options);
+                } catch (Exception e) {
+                    //
+                } finally {
+                    silentlyClose(ss);
+                }
+            });
+            return;
+        }
+        workers = Executors.newCachedThreadPool();
         this.t = new Thread(() ->
         {
-            SocketChannel sc = null;
             try {
-                sc = ss.accept();
-                while (!Thread.interrupted() && content.hasRemaining()) {
-                    var oldlimit = content.limit();
-                    content.limit(Math.min(content.position() + max, oldlimit));
-                    sc.write(content);
-                    Thread.sleep(100);
-                    content.limit(oldlimit);
+                for (var accepted = 0; options.maxConnections == 0 || accepted < options.maxConnections; accepted++) {
+                    var sc = ss.accept();
+                    workers.execute(() -> serveConnection(sc, options));
                 }
             } catch (Exception e) {
                 //
             } finally {
-                try {
-                    if (sc != null) sc.close();
-                    ss.close();
-                } catch (Exception e) {
-                    //
-                }
+                silentlyClose(ss);
             }
         });
     }
@@ -79,18 +185,170 @@ public class FakeHTTPServer {
         });
     }
 
+    /**
+     * @return the bytes sent for each response
+     */
+    private static ByteBuffer response(byte[] body, Options options) {
+        switch (options.encoding) {
+            case CONTENT_LENGTH: {
+                var header = ("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\n"
+                        + "Content-Length: " + body.length + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+                return ByteBuffer.allocate(header.length + body.length).put(header).put(body).flip();
+            }
+            case CHUNKED: {
+                var bb = ByteBuffer.allocate(body.length + 256 + (body.length / options.chunkSize + 1) * 16);
+                bb.put(("HTTP/1.1 200 OK\r\nContent-Type: text/html; charset=utf-8\r\n"
+                        + "Transfer-Encoding: chunked\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+                for (var offset = 0; offset < body.length; offset += options.chunkSize) {
+                    var size = Math.min(options.chunkSize, body.length - offset);
+                    bb.put((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    bb.put(body, offset, size);
+                    bb.put("\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                return bb.put("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII)).flip();
+            }
+            default:
+                return ByteBuffer.wrap(body);
+        }
+    }
+
+    private void serveConnection(SocketChannel sc, Options options) {
+        try {
+            sc.setOption(StandardSocketOptions.TCP_NODELAY, true);     // fragments leave as they are written
+            if (options.encoding == Encoding.RAW) {
+                send(sc, content.duplicate(), options);
+                return;
+            }
+            var request = ByteBuffer.allocate(8192);
+            while (!Thread.interrupted() && readRequest(sc, request)) {
+                send(sc, content.duplicate(), options);
+            }
+        } catch (Exception e) {
+            //
+        } finally {
+            silentlyClose(sc);
+        }
+    }
+
+    /**
+     * Reads up to the end of a request header and drops it, request is kept in write-mode.
+     * @return false if the client closed the connection
+     */
+    private static boolean readRequest(SocketChannel sc, ByteBuffer request) throws IOException {
+        while (true) {
+            request.flip();
+            for (var i = 0; i + 3 < request.limit(); i++) {
+                if (request.get(i) == '\r' && request.get(i + 1) == '\n'
+                        && request.get(i + 2) == '\r' && request.get(i + 3) == '\n') {
+                    request.position(i + 4);
+                    request.compact();
+                    return true;
+                }
+            }
+            request.position(request.limit());
+            request.compact();
+            if (! request.hasRemaining()) {
+                throw new HTTPException("Request header too large");
+            }
+            if (sc.read(request) == -1) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes bb in fragments of fragmentSize. With a bandwidth, each fragment is written in slices of about
+     * 10 ms of bandwidth, and each slice waits until the bytes sent before it fit in the bandwidth.
+     */
+    private static void send(SocketChannel sc, ByteBuffer bb, Options options) throws IOException, InterruptedException {
+        if (options.firstByteLatencyMillis > 0) {
+            Thread.sleep(options.firstByteLatencyMillis);
+        }
+        var slice = options.bytesPerSecond > 0
+                ? (int) Math.max(1, Math.min(options.fragmentSize, options.bytesPerSecond / 100))
+                : options.fragmentSize;
+        var start = System.nanoTime();
+        var sent = 0L;
+        while (!Thread.interrupted() && bb.hasRemaining()) {
+            var oldlimit = bb.limit();
+            var fragmentEnd = (int) Math.min((long) bb.position() + options.fragmentSize, oldlimit);
+            while (!Thread.currentThread().isInterrupted() && bb.position() < fragmentEnd) {
+                if (options.bytesPerSecond > 0) {       // wait until the bytes sent fit in the bandwidth
+                    var due = start + sent * 1_000_000_000L / options.bytesPerSecond;
+                    var wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                bb.limit((int) Math.min((long) bb.position() + slice, fragmentEnd));
+                while (bb.hasRemaining()) {
+                    sent += sc.write(bb);
+                }
+            }
+            bb.limit(oldlimit);
+            if (options.fragmentDelayMillis > 0) {
+                Thread.sleep(options.fragmentDelayMillis);
+            }
+        }
+    }
+
+    private static void silentlyClose(Channel channel) {
+        try {
+            if (channel != null) channel.close();
+        } catch (Exception e) {
+            //
+        }
+    }
+
     public void serve() {
         t.start();
     }
 
     public void shutdown() {
         t.interrupt();
+        if (workers != null) {
+            silentlyClose(ss);
+            workers.shutdownNow();
+        }
     }
 
-
+    /**
+     * Shuts the server down and waits for the connections being served.
+     */
+    public void awaitShutdown(long timeoutMillis) throws InterruptedException {
+        shutdown();
+        t.join(timeoutMillis);
+        if (workers != null) {
+            workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
 
     public int getPort() {
         return port;
     }
-}
 
+    public static void usage() {
+        System.out.println("Usage : FakeHTTPServer <body size> <RAW|CONTENT_LENGTH|CHUNKED> <fragment size> "
+                + "<fragment delay ms> <bandwidth bytes/s> <first byte latency ms>");
+    }
+
+    /**
+     * Starts a server answering every request with a body of the given size, without connection limit.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 6) {
+            usage();
+            return;
+        }
+        var options = new Options()
+                .encoding(Encoding.valueOf(args[1]))
+                .fragmentSize(Integer.parseInt(args[2]))
+                .fragmentDelay(Long.parseLong(args[3]))
+                .bandwidth(Long.parseLong(args[4]))
+                .firstByteLatency(Long.parseLong(args[5]))
+                .maxConnections(0);
+        var server = new FakeHTTPServer("x".repeat(Integer.parseInt(args[0])), options);
+        server.serve();
+        System.out.println("FakeHTTPServer listening on port " + server.getPort());
+    }
+}
@@ -0,0 +1,173 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches a list of URLs concurrently, at most maxConcurrent at a time, and reports
+ * for each one the final status code, the size of the body and the latency.
+ * Redirections are followed by HTTPClient. Bodies are read and discarded.
+ */
+public class HTTPBatchFetcher {
+    private static final int PORT = 80;
+    private final static Logger logger = Logger.getLogger(HTTPBatchFetcher.class.getName());
+    private final List<String> urls;
+    private final int maxConcurrent;
+
+    public HTTPBatchFetcher(List<String> urls, int maxConcurrent) {
+        Objects.requireNonNull(urls);
+        if (maxConcurrent <= 0) {
+            throw new IllegalArgumentException("maxConcurrent must be positive");
+        }
+        this.urls = List.copyOf(urls);
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Result of the fetch of one URL
+     */
+    public static class FetchResult {
+        private final String url;
+        private final int code;
+        private final long size;
+        private final long latencyNanos;
+        private final String error;
+
+        private FetchResult(String url, int code, long size, long latencyNanos, String error) {
+            this.url = url;
+            this.code = code;
+            this.size = size;
+            this.latencyNanos = latencyNanos;
+            this.error = error;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        /**
+         * @return the message of the error that stopped the fetch, null if it succeeded
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return url + "\t" + (error == null ? code : "ERR") + "\t" + size + "\t"
+                    + String.format("%.3f", latencyNanos / 1_000_000.0)
+                    + (error == null ? "" : "\t" + error);
+        }
+    }
+
+    /**
+     * Fetches all the URLs, blocking until every fetch has completed.
+     * @return the results in the order of the URLs
+     */
+    public List<FetchResult> fetchAll() throws InterruptedException {
+        var executor = Executors.newFixedThreadPool(maxConcurrent);
+        try {
+            var futures = new ArrayList<Future<FetchResult>>(urls.size());
+            for (var url : urls) {
+                futures.add(executor.submit(() -> fetch(url)));
+            }
+            var results = new ArrayList<FetchResult>(urls.size());
+            for (var future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new AssertionError(e.getCause());    // fetch never throws
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static FetchResult fetch(String location) {
+        var start = System.nanoTime();
+        try {
+            var url = new URL(location);
+            if (! url.getProtocol().equals("http")) {
+                throw new HTTPException("Only the HTTP protocol is supported");
+            }
+            var resource = url.getFile().isEmpty() ? "/" : url.getFile();
+            var port = url.getPort() == -1 ? PORT : url.getPort();
+            try (var client = new HTTPClient(url.getHost(), port, resource)) {
+                client.sendRequest();
+                var size = client.fetch();
+                return new FetchResult(location, client.getLastCode(), size, System.nanoTime() - start, null);
+            }
+        } catch (MalformedURLException e) {
+            return new FetchResult(location, -1, 0, System.nanoTime() - start, "Malformed URL");
+        } catch (UnresolvedAddressException e) {
+            return new FetchResult(location, -1, 0, System.nanoTime() - start, "Unresolved host");
+        } catch (IllegalArgumentException e) {      // port out of range
+            return new FetchResult(location, -1, 0, System.nanoTime() - start, e.getMessage());
+        } catch (IOException e) {
+            logger.info("Fetch of " + location + " failed : " + e.getMessage());
+            return new FetchResult(location, -1, 0, System.nanoTime() - start, e.getMessage());
+        }
+    }
+
+    private static void report(List<FetchResult> results, long elapsedNanos, PrintStream out) {
+        out.println("url\tcode\tsize\tlatency(ms)");
+        results.forEach(out::println);
+        var failures = results.stream().filter(r -> r.getError() != null).count();
+        var bytes = results.stream().mapToLong(FetchResult::getSize).sum();
+        out.println(String.format("# %d urls, %d failed, %d bytes in %d ms",
+                results.size(), failures, bytes, elapsedNanos / 1_000_000));
+    }
+
+    public static void usage() {
+        System.out.println("Usage : HTTPBatchFetcher <url file> <max concurrent> [<report file>]");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 2 && args.length != 3) {
+            usage();
+            return;
+        }
+        var urls = Files.readAllLines(Path.of(args[0])).stream()
+                .map(String::trim)
+                .filter(line -> ! line.isEmpty() && ! line.startsWith("#"))
+                .collect(Collectors.toList());
+        var fetcher = new HTTPBatchFetcher(urls, Integer.parseInt(args[1]));
+        var start = System.nanoTime();
+        var results = fetcher.fetchAll();
+        var elapsed = System.nanoTime() - start;
+        if (args.length == 3) {
+            try (var out = new PrintStream(args[2])) {
+                report(results, elapsed, out);
+            }
+        } else {
+            report(results, elapsed, System.out);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.List;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPBatchFetcher
+ */
+public class HTTPBatchFetcherTest {
+
+    /**
+     * A URL that cannot be fetched gives an error result, the other URLs of the batch are fetched
+     */
+    @Test
+    public void testBadURLsInBatch() throws IOException, InterruptedException {
+        var server = new FakeHTTPServer("HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello", Integer.MAX_VALUE);
+        server.serve();
+        try {
+            var ok = "http://localhost:" + server.getPort() + "/";
+            var results = new HTTPBatchFetcher(List.of("http://unresolvable.invalid/", ok,
+                    "http://localhost:99999/"), 1).fetchAll();
+            assertEquals(3, results.size());
+            assertNull(results.get(1).getError());
+            assertEquals(200, results.get(1).getCode());
+            assertEquals(5, results.get(1).getSize());
+            for (var i : List.of(0, 2)) {
+                assertNotNull(results.get(i).getError());
+                assertEquals(-1, results.get(i).getCode());
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * 204 and 304 responses have no body even without size information
+     */
+    @Test
+    public void testResponsesWithoutBody() throws IOException, InterruptedException {
+        for (var response : List.of("HTTP/1.1 204 No Content\r\n\r\n", "HTTP/1.1 304 Not Modified\r\n\r\n")) {
+            var server = new FakeHTTPServer(response, Integer.MAX_VALUE);
+            server.serve();
+            try {
+                var result = new HTTPBatchFetcher(List.of("http://localhost:" + server.getPort() + "/"), 1)
+                        .fetchAll().get(0);
+                assertNull(result.getError());
+                assertEquals(Integer.parseInt(response.substring(9, 12)), result.getCode());
+                assertEquals(0, result.getSize());
+            } finally {
+                server.shutdown();
+            }
+        }
+    }
+}
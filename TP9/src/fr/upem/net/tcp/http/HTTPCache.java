@@ -0,0 +1,270 @@
+package fr.upem.net.tcp.http;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Logger;
+
+/**
+ * Cache of HTTP responses keyed by host, port and resource.
+ * <p>
+ * The most recently used entries are kept in memory (LRU), every entry is also written
+ * in the cache directory so that it survives the client. Freshness follows the
+ * Cache-Control (max-age, no-cache, no-store) and Expires fields. Stale entries carrying
+ * an ETag or a Last-Modified date are revalidated with If-None-Match / If-Modified-Since.
+ * Entries on disk are never evicted.
+ */
+public class HTTPCache {
+    private final static Logger logger = Logger.getLogger(HTTPCache.class.getName());
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    private final Path directory;
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param directory : the directory where entries are stored, null for a memory-only cache
+     * @param maxEntries : the maximum number of entries kept in memory
+     */
+    public HTTPCache(Path directory, int maxEntries) throws IOException {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * A cached response
+     */
+    public static class Entry {
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+        private final long expiresAt;
+        private final byte[] body;
+
+        private Entry(String contentType, String etag, String lastModified, long expiresAt, byte[] body) {
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expiresAt = expiresAt;
+            this.body = body;
+        }
+
+        /**
+         * @param now : the current time in milliseconds
+         * @return true if the entry can be served without contacting the server
+         */
+        public boolean isFresh(long now) {
+            return now < expiresAt;
+        }
+
+        /**
+         * @return the fields to add to the request to revalidate this entry, each terminated by CRLF
+         */
+        public String conditionalFields() {
+            var fields = "";
+            if (etag != null) {
+                fields += "If-None-Match: " + etag + "\r\n";
+            }
+            if (lastModified != null) {
+                fields += "If-Modified-Since: " + lastModified + "\r\n";
+            }
+            return fields;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return the body decoded with the charset of the Content-Type, UTF-8 by default
+         */
+        public String decode() {
+            Charset charset = null;
+            if (contentType != null) {
+                for (var t : contentType.split(";")) {
+                    if (t.contains("charset=")) {
+                        try {
+                            charset = Charset.forName(t.split("=")[1].trim());
+                        } catch (Exception e) {
+                            // unknown charset, fall back to UTF-8
+                        }
+                    }
+                }
+            }
+            return new String(body, charset == null ? StandardCharsets.UTF_8 : charset);
+        }
+    }
+
+    public static String key(InetSocketAddress server, String resource) {
+        return server.getHostString() + ":" + server.getPort() + resource;
+    }
+
+    /**
+     * @return the entry for key, looked up in memory then on disk, null if there is none
+     */
+    public synchronized Entry get(String key) {
+        Objects.requireNonNull(key);
+        var entry = entries.get(key);
+        if (entry == null && directory != null) {
+            entry = load(key);
+            if (entry != null) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Stores a 200 response.
+     * @return the new entry, null if the response must not be stored
+     */
+    public synchronized Entry put(String key, HTTPHeader header, byte[] body) {
+        var cacheControl = header.getField("cache-control");
+        if (header.getCode() != 200 || (cacheControl != null && cacheControl.contains("no-store"))) {
+            return null;
+        }
+        var entry = new Entry(header.getField("content-type"), header.getField("etag"),
+                header.getField("last-modified"), expiresAt(header, System.currentTimeMillis()), body);
+        if (entry.etag == null && entry.lastModified == null && ! entry.isFresh(System.currentTimeMillis())) {
+            return null;    // could neither be served nor revalidated
+        }
+        store(key, entry);
+        return entry;
+    }
+
+    /**
+     * Refreshes an entry after a 304 response.
+     * @return the refreshed entry
+     */
+    public synchronized Entry revalidated(String key, Entry old, HTTPHeader header) {
+        var etag = header.getField("etag");
+        var lastModified = header.getField("last-modified");
+        var entry = new Entry(old.contentType, etag == null ? old.etag : etag,
+                lastModified == null ? old.lastModified : lastModified,
+                expiresAt(header, System.currentTimeMillis()), old.body);
+        store(key, entry);
+        return entry;
+    }
+
+    /**
+     * @return the time in milliseconds until which a response with this header is fresh
+     */
+    static long expiresAt(HTTPHeader header, long now) {
+        var cacheControl = header.getField("cache-control");
+        if (cacheControl != null) {
+            for (var directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(directive.substring("max-age=".length())) * 1000;
+                    } catch (NumberFormatException e) {
+                        return 0;
+                    }
+                }
+            }
+        }
+        var expires = header.getField("expires");
+        if (expires == null) {
+            return 0;
+        }
+        try {
+            var expiresAt = ZonedDateTime.parse(expires, HTTP_DATE).toInstant().toEpochMilli();
+            var date = header.getField("date");
+            if (date != null) {     // relative to the clock of the server
+                return now + expiresAt - ZonedDateTime.parse(date, HTTP_DATE).toInstant().toEpochMilli();
+            }
+            return expiresAt;
+        } catch (DateTimeParseException e) {
+            return 0;               // invalid dates mean already expired
+        }
+    }
+
+    private void store(String key, Entry entry) {
+        entries.put(key, entry);
+        if (directory == null) {
+            return;
+        }
+        try (var out = new DataOutputStream(Files.newOutputStream(file(key)))) {
+            out.writeUTF(key);
+            writeNullable(out, entry.contentType);
+            writeNullable(out, entry.etag);
+            writeNullable(out, entry.lastModified);
+            out.writeLong(entry.expiresAt);
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+        } catch (IOException e) {
+            logger.warning("Could not write cache entry for " + key + " : " + e.getMessage());
+        }
+    }
+
+    private Entry load(String key) {
+        try (var in = new DataInputStream(Files.newInputStream(file(key)))) {
+            if (! in.readUTF().equals(key)) {
+                return null;
+            }
+            var contentType = readNullable(in);
+            var etag = readNullable(in);
+            var lastModified = readNullable(in);
+            var expiresAt = in.readLong();
+            var body = new byte[in.readInt()];
+            in.readFully(body);
+            return new Entry(contentType, etag, lastModified, expiresAt, body);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warning("Could not read cache entry for " + key + " : " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private Path file(String key) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            var name = new StringBuilder();
+            for (var b : digest) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name.toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);    // SHA-256 is available on every JVM
+        }
+    }
+}
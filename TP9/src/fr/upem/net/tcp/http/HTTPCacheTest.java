@@ -0,0 +1,103 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPCache, used through HTTPClient
+ */
+public class HTTPCacheTest {
+
+    /**
+     * Serves one canned response per connection, in order, like FakeHTTPServer does for a single one
+     */
+    private static class SequenceServer {
+        private final ServerSocketChannel ss;
+        private final Thread t;
+        private final AtomicInteger accepted = new AtomicInteger();
+
+        SequenceServer(List<String> responses) throws IOException {
+            ss = ServerSocketChannel.open();
+            ss.bind(null);
+            t = new Thread(() -> {
+                try {
+                    for (var response : responses) {
+                        try (var sc = ss.accept()) {
+                            accepted.incrementAndGet();
+                            sc.read(ByteBuffer.allocate(1024));
+                            sc.write(StandardCharsets.US_ASCII.encode(response));
+                        }
+                    }
+                } catch (IOException e) {
+                    //
+                }
+            });
+            t.start();
+        }
+
+        int getPort() throws IOException {
+            return ss.socket().getLocalPort();
+        }
+
+        void shutdown() throws IOException {
+            t.interrupt();
+            ss.close();
+        }
+    }
+
+    private static String get(HTTPCache cache, int port) throws IOException {
+        try (var client = new HTTPClient("localhost", port, "/index.html")) {
+            return client.getResponse(cache);
+        }
+    }
+
+    /**
+     * A fresh entry is served without connecting, a stale one is revalidated
+     */
+    @Test
+    public void testRevalidation() throws IOException {
+        var server = new SequenceServer(List.of(
+                "HTTP/1.1 200 OK\r\nContent-Length: 5\r\nETag: \"v1\"\r\nCache-Control: max-age=0\r\n\r\nhello",
+                "HTTP/1.1 304 Not Modified\r\nETag: \"v1\"\r\nCache-Control: max-age=60\r\n\r\n"));
+        try {
+            var cache = new HTTPCache(null, 4);
+            assertEquals("hello", get(cache, server.getPort()));
+            assertEquals("hello", get(cache, server.getPort()));
+            assertEquals(2, server.accepted.get());
+            var entry = cache.get(HTTPCache.key(new InetSocketAddress("localhost", server.getPort()), "/index.html"));
+            assertTrue(entry.isFresh(System.currentTimeMillis()));
+            server.shutdown();      // a connection attempt would now be refused
+            assertEquals("hello", get(cache, server.getPort()));
+            assertEquals(2, server.accepted.get());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * Responses with no-store are not cached
+     */
+    @Test
+    public void testNoStore() throws IOException {
+        var server = new SequenceServer(List.of(
+                "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nETag: \"v1\"\r\nCache-Control: no-store\r\n\r\nok"));
+        try {
+            var cache = new HTTPCache(null, 4);
+            assertEquals("ok", get(cache, server.getPort()));
+            assertNull(cache.get(HTTPCache.key(new InetSocketAddress("localhost", server.getPort()), "/index.html")));
+        } finally {
+            server.shutdown();
+        }
+    }
+}
@@ -1,42 +1,79 @@
 package fr.upem.net.tcp.http;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Objects;
 import java.util.logging.Logger;
 
-public class HTTPClient {
+import static java.nio.file.StandardOpenOption.*;
+
+public class HTTPClient implements Closeable {
     private static final int BUFFER_SIZE = 1024;
     private static final int PORT = 80;
     private static final int MAX_REDIRECTION = 5;
     private final Charset ASCII = StandardCharsets.US_ASCII;
     private final Charset UTF8 = StandardCharsets.UTF_8;
     private final static Logger logger = Logger.getLogger(HTTPClient.class.getName());
-    private final String resource;
+    private String resource;
     private InetSocketAddress server;
     private HTTPReader reader;
-    private SocketChannel sc;
+    private SocketChannel sc;           // null until the first request is sent
     private int nbRedirection;
+    private int lastCode;
 
     public HTTPClient(String address, String resource) throws IOException {
+        this(address, PORT, resource);
+    }
+
+    /**
+     * The connection to the server is only opened when a request is sent
+     */
+    public HTTPClient(String address, int port, String resource) throws IOException {
         Objects.requireNonNull(address);
         Objects.requireNonNull(resource);
-        this.server = new InetSocketAddress(address, PORT);
+        this.server = new InetSocketAddress(address, port);
         this.resource = resource;
-        this.sc = SocketChannel.open();
-        this.sc.connect(this.server);
-        this.reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+
+    /**
+     * @return a channel connected to server, the channel is closed if the connection fails
+     */
+    private static SocketChannel connect(InetSocketAddress server) throws IOException {
+        var sc = SocketChannel.open();
+        try {
+            sc.connect(server);
+        } catch (IOException | RuntimeException e) {   // UnresolvedAddressException is unchecked
+            sc.close();
+            throw e;
+        }
+        return sc;
     }
 
     public void sendRequest() throws IOException {
+        sendRequest("");
+    }
+
+    /**
+     * @param fields : additional fields of the request, each terminated by CRLF
+     */
+    private void sendRequest(String fields) throws IOException {
         var request = "GET " + resource + " HTTP/1.1\r\n"
                 + "Host: " + server.getHostString() + ":" + server.getPort() + "\r\n"
+                + fields
                 + "\r\n";
+        if (sc == null) {
+            sc = connect(server);
+            reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
         sc.write(ASCII.encode(request));
     }
 
@@ -46,10 +83,10 @@ public class HTTPClient {
         if (! url.getProtocol().equals("http")) {
             throw new HTTPException("Redirected resource can't be find using HTTP protocol.\nCanceling request");
         }
-        server = new InetSocketAddress(url.getHost(), PORT);
-        sc = SocketChannel.open();
-        sc.connect(server);
-        reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+        server = new InetSocketAddress(url.getHost(), url.getPort() == -1 ? PORT : url.getPort());
+        resource = url.getFile().isEmpty() ? "/" : url.getFile();
+        sc.close();
+        sc = null;          // the next request connects to the new server
         nbRedirection++;
         if (nbRedirection >= MAX_REDIRECTION) {
             throw new HTTPException("Too much redirection.\nCanceling request");
@@ -63,13 +100,13 @@ public class HTTPClient {
         var charset = header.getCharset();
         System.out.println(header + "\n");
         if (header.getCode() == 301 || header.getCode() == 302) {       // dealing with redirections
-            var location = header.getFields().get("location");
+            var location = header.getField("location");
             if (location == null) {
                 throw new HTTPException("Server said the document has moved, but has not provided the new address");
             }
             redirect(location);
             sendRequest();
-            getResponse();
+            return getResponse();
         }
         if (contentType == null ) {
             throw new HTTPException("Missing content-type in response header");
@@ -97,17 +134,177 @@ public class HTTPClient {
         throw new IllegalArgumentException("Response is not html");
     }
 
+    /**
+     * Gets the resource through cache. A fresh entry is returned without contacting the server,
+     * a stale one is revalidated and returned if the server answers 304 Not Modified.
+     * The request is sent by this method, sendRequest must not be called before.
+     * @param cache : the cache to look up and update
+     * @return the body decoded with the charset of the response, UTF-8 by default
+     * @throws IOException HTTPException if the response is ill-formed or the connection is closed too early
+     */
+    public String getResponse(HTTPCache cache) throws IOException {
+        var key = HTTPCache.key(server, resource);
+        var entry = cache.get(key);
+        if (entry != null && entry.isFresh(System.currentTimeMillis())) {
+            logger.info(key + " served from cache");
+            return entry.decode();
+        }
+        sendRequest(entry == null ? "" : entry.conditionalFields());
+        var header = readFinalHeader();
+        if (header.getCode() == 304 && entry != null) {
+            logger.info(key + " not modified, served from cache");
+            return cache.revalidated(key, entry, header).decode();
+        }
+        ByteBuffer buff;
+        if (! hasBody(header)) {
+            buff = ByteBuffer.allocate(0);
+        }
+        else if (header.isChunkedTransfer()) {
+            buff = reader.readChunks();
+        }
+        else {
+            var size = header.getContentLength();
+            if (size == -1) {
+                throw new HTTPException("Missing size information in response header");
+            }
+            buff = reader.readBytes(size);
+        }
+        buff.flip();
+        var body = new byte[buff.remaining()];
+        buff.get(body);
+        cache.put(key, header, body);
+        var charset = header.getCharset();
+        return new String(body, charset == null ? UTF8 : charset);
+    }
+
+    /**
+     * Streams the body of the response, whatever its content type, to the file target.
+     * The bytes are moved from the socket to the file with FileChannel.transferFrom,
+     * the body is never decoded nor held in memory.
+     * @param target : the file receiving the body, created or truncated
+     * @return the number of bytes written to target
+     * @throws IOException HTTPException if the response is ill-formed or the connection is closed too early
+     */
+    public long download(Path target) throws IOException {
+        var header = readFinalHeader();
+        System.out.println(header + "\n");
+        var start = System.nanoTime();
+        long size;
+        try (var fc = FileChannel.open(target, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            if (! hasBody(header)) {
+                size = 0;
+            }
+            else if (header.isChunkedTransfer()) {
+                size = reader.transferChunks(fc);
+            }
+            else {
+                size = header.getContentLength();
+                if (size == -1) {
+                    throw new HTTPException("Missing size information in response header");
+                }
+                reader.transferBytes(fc, size);
+            }
+        }
+        var elapsed = Math.max(System.nanoTime() - start, 1);
+        logger.info(String.format("Downloaded %d bytes to %s in %d ms (%.2f MB/s)",
+                size, target, elapsed / 1_000_000, size * 1_000.0 / elapsed));
+        return size;
+    }
+
+    /**
+     * Reads the whole response, following redirections, and discards its body.
+     * @return the number of bytes of the body
+     * @throws IOException HTTPException if the response is ill-formed or the connection is closed too early
+     */
+    public long fetch() throws IOException {
+        var header = readFinalHeader();
+        if (! hasBody(header)) {
+            return 0;
+        }
+        if (header.isChunkedTransfer()) {
+            return reader.skipChunks();
+        }
+        var size = header.getContentLength();
+        if (size == -1) {
+            throw new HTTPException("Missing size information in response header");
+        }
+        reader.skipBytes(size);
+        return size;
+    }
+
+    /**
+     * @return false for the responses that never have a body (1xx, 204 No Content, 304 Not Modified),
+     *         whatever their size fields
+     */
+    static boolean hasBody(HTTPHeader header) {
+        var code = header.getCode();
+        return code / 100 != 1 && code != 204 && code != 304;
+    }
+
+    /**
+     * @return the code of the last response read by this client
+     */
+    public int getLastCode() {
+        return lastCode;
+    }
+
+    /**
+     * Reads response headers, following 301/302 redirections, until a final response is received.
+     */
+    private HTTPHeader readFinalHeader() throws IOException {
+        var header = reader.readHeader();
+        while (header.getCode() == 301 || header.getCode() == 302) {    // dealing with redirections
+            var location = header.getField("location");
+            if (location == null) {
+                throw new HTTPException("Server said the document has moved, but has not provided the new address");
+            }
+            redirect(location);
+            sendRequest();
+            header = reader.readHeader();
+        }
+        lastCode = header.getCode();
+        return header;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sc != null) {
+            sc.close();
+        }
+    }
+
     public static void usage() {
-        System.out.println("Usage : HTTPClient <host> <resource>");
+        System.out.println("Usage : HTTPClient <host> <resource> [<output file> | -cache <directory>]");
     }
     public static void main(String[] args) throws IOException {
-        if (args.length != 2) {
+        String cacheDirectory = null;
+        var positional = new ArrayList<String>();
+        for (var i = 0; i < args.length; i++) {
+            if (args[i].equals("-cache") && i + 1 < args.length && cacheDirectory == null) {
+                cacheDirectory = args[++i];
+            } else if (args[i].startsWith("-")) {   // unknown flag, or -cache without its directory
+                usage();
+                return;
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if (positional.size() < 2 || positional.size() > 3 || (cacheDirectory != null && positional.size() == 3)) {
             usage();
+            return;
         }
-        var host = args[0];
-        var resource = args[1];
+        var host = positional.get(0);
+        var resource = positional.get(1);
         var client = new HTTPClient(host, resource);
+        if (cacheDirectory != null) {
+            System.out.println(client.getResponse(new HTTPCache(Path.of(cacheDirectory), 64)));
+            return;
+        }
         client.sendRequest();
+        if (positional.size() == 3) {
+            client.download(Path.of(positional.get(2)));
+            return;
+        }
         try {
             var response = client.getResponse();
             System.out.println(response);
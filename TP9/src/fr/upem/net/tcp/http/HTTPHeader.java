@@ -1,6 +1,7 @@
 package fr.upem.net.tcp.http;
 
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static fr.upem.net.tcp.http.HTTPException.ensure;
@@ -9,6 +10,11 @@ import static fr.upem.net.tcp.http.HTTPException.ensure;
 /**
  * @author carayol
  *         Class representing a HTTP header
+ *         <p>
+ *         The fields are kept as the raw bytes received, together with the offsets of
+ *         their names and values. A field is only decoded when it is asked for, and
+ *         Content-Length, Content-Type and charset are parsed once and cached.
+ *         The same representation is used for the header of a request, see createRequest.
  */
 
 public class HTTPHeader {
@@ -20,37 +26,162 @@ public class HTTPHeader {
     private static final String[] LIST_SUPPORTED_VERSIONS = new String[]{"HTTP/1.0", "HTTP/1.1", "HTTP/2.0"};
     public static final Set<String> SUPPORTED_VERSIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(LIST_SUPPORTED_VERSIONS)));
 
+    private static final int NAME_START = 0;
+    private static final int NAME_END = 1;
+    private static final int VALUE_START = 2;
+    private static final int VALUE_END = 3;
+    private static final int OFFSETS_PER_FIELD = 4;
 
     private final String response;
     private final String version;
     private final int code;
-    private final Map<String, String> fields;
+    private final String method;
+    private final String resource;
+    private final byte[] raw;
+    private final int[] offsets;        // OFFSETS_PER_FIELD entries per field, values already trimmed
+    private final int nbFields;
 
+    // lazily computed
+    private Map<String, String> fields;
+    private boolean contentLengthParsed;
+    private int contentLength;
+    private boolean contentTypeParsed;
+    private String contentType;
+    private boolean charsetParsed;
+    private Charset charset;
 
-    private HTTPHeader(String response, String version, int code, Map<String, String> fields) throws HTTPException {
+
+    private HTTPHeader(String response, String version, int code, String method, String resource,
+                       byte[] raw, int length) throws HTTPException {
         this.response = response;
         this.version = version;
         this.code = code;
-        this.fields = Collections.unmodifiableMap(fields);
+        this.method = method;
+        this.resource = resource;
+        this.raw = raw;
+        // Indexing of the fields, nothing is decoded here
+        var offsets = new int[OFFSETS_PER_FIELD * 8];
+        var nbFields = 0;
+        var lineStart = 0;
+        while (lineStart < length) {
+            var lineEnd = indexOfCRLF(raw, lineStart, length);
+            ensure(lineEnd != -1, "HTTP header is ill-formed");
+            if (lineEnd == lineStart) {     // empty line : end of the header
+                break;
+            }
+            var colon = lineStart;
+            while (colon < lineEnd && raw[colon] != ':') {
+                colon++;
+            }
+            ensure(colon < lineEnd, "HTTP header is ill-formed");
+            if (offsets.length < (nbFields + 1) * OFFSETS_PER_FIELD) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            var valueStart = colon + 1;
+            var valueEnd = lineEnd;
+            while (valueStart < valueEnd && isSpace(raw[valueStart])) {
+                valueStart++;
+            }
+            while (valueEnd > valueStart && isSpace(raw[valueEnd - 1])) {
+                valueEnd--;
+            }
+            var base = nbFields * OFFSETS_PER_FIELD;
+            offsets[base + NAME_START] = lineStart;
+            offsets[base + NAME_END] = colon;
+            offsets[base + VALUE_START] = valueStart;
+            offsets[base + VALUE_END] = valueEnd;
+            nbFields++;
+            lineStart = lineEnd + 2;
+        }
+        this.offsets = offsets;
+        this.nbFields = nbFields;
     }
-    
+
     public static HTTPHeader create(String response, Map<String,String> fields) throws HTTPException {
-        String[] tokens = response.split(" ");
+        var builder = new StringBuilder();
+        for (var entry : fields.entrySet()) {
+            builder.append(entry.getKey()).append(':').append(entry.getValue()).append("\r\n");
+        }
+        var raw = builder.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1);
+        return create(response, raw, raw.length);
+    }
+
+    /**
+     * @param response : the status line, without its CRLF
+     * @param raw : the field lines, each terminated by CRLF, followed by the empty line ending the header
+     * @param length : number of bytes of raw holding the fields
+     * @throws HTTPException if the status line or a field line is ill-formed
+     */
+    public static HTTPHeader create(String response, byte[] raw, int length) throws HTTPException {
         // Treatment of the response line
-        ensure(tokens.length >= 2, "Badly formed response:\n" + response);
-        String version = tokens[0];
+        var firstSpace = response.indexOf(' ');
+        ensure(firstSpace != -1, "Badly formed response:\n" + response);
+        var secondSpace = response.indexOf(' ', firstSpace + 1);
+        String version = response.substring(0, firstSpace);
         ensure(HTTPHeader.SUPPORTED_VERSIONS.contains(version), "Unsupported version in response:\n" + response);
         int code = 0;
         try {
-            code = Integer.parseInt(tokens[1]);
+            code = Integer.parseInt(response, firstSpace + 1, secondSpace == -1 ? response.length() : secondSpace, 10);
             ensure(code >= 100 && code < 600, "Invalid code in response:\n" + response);
         } catch (NumberFormatException e) {
             ensure(false, "Invalid response:\n" + response);
         }
-        Map<String,String> fieldsCopied = new HashMap<>();
-        for (String s : fields.keySet())
-            fieldsCopied.put(s.toLowerCase(),fields.get(s).trim());
-        return new HTTPHeader(response,version,code,fieldsCopied);
+        return new HTTPHeader(response, version, code, null, null, raw, length);
+    }
+
+    /**
+     * @param request : the request line, without its CRLF
+     * @param raw : the field lines, each terminated by CRLF, followed by the empty line ending the header
+     * @param length : number of bytes of raw holding the fields
+     * @return the header of a request, its code is 0
+     * @throws HTTPException if the request line or a field line is ill-formed
+     */
+    public static HTTPHeader createRequest(String request, byte[] raw, int length) throws HTTPException {
+        var firstSpace = request.indexOf(' ');
+        var lastSpace = request.lastIndexOf(' ');
+        ensure(firstSpace > 0 && lastSpace > firstSpace + 1, "Badly formed request:\n" + request);
+        String version = request.substring(lastSpace + 1);
+        ensure(HTTPHeader.SUPPORTED_VERSIONS.contains(version), "Unsupported version in request:\n" + request);
+        return new HTTPHeader(request, version, 0, request.substring(0, firstSpace),
+                request.substring(firstSpace + 1, lastSpace), raw, length);
+    }
+
+    private static int indexOfCRLF(byte[] raw, int from, int length) {
+        for (var i = from; i + 1 < length; i++) {
+            if (raw[i] == '\r' && raw[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private boolean nameEquals(int field, String lowerName) {
+        var base = field * OFFSETS_PER_FIELD;
+        var start = offsets[base + NAME_START];
+        var end = offsets[base + NAME_END];
+        if (end - start != lowerName.length()) {
+            return false;
+        }
+        for (var i = 0; i < lowerName.length(); i++) {
+            var b = raw[start + i];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerName.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String value(int field) {
+        var base = field * OFFSETS_PER_FIELD;
+        var start = offsets[base + VALUE_START];
+        return new String(raw, start, offsets[base + VALUE_END] - start, StandardCharsets.ISO_8859_1);
     }
 
     public String getResponse() {
@@ -65,7 +196,52 @@ public class HTTPHeader {
         return code;
     }
 
+    /**
+     * @return the method of a request header, null for a response header
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the resource of a request header, null for a response header
+     */
+    public String getResource() {
+        return resource;
+    }
+
+    /**
+     * @param name : the name of the field, case-insensitive
+     * @return the value of the field, the values being joined by "; " if the field appears several times
+     *         null if the field does not exists
+     */
+    public String getField(String name) {
+        var lowerName = name.toLowerCase(Locale.ROOT);
+        String result = null;
+        for (var i = 0; i < nbFields; i++) {
+            if (nameEquals(i, lowerName)) {
+                result = (result == null) ? value(i) : result.concat("; ").concat(value(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return all the fields, with lower-cased names. The map is built on the first call.
+     */
     public Map<String, String> getFields() {
+        if (fields == null) {
+            var map = new HashMap<String, String>();
+            for (var i = 0; i < nbFields; i++) {
+                var base = i * OFFSETS_PER_FIELD;
+                var start = offsets[base + NAME_START];
+                var name = new String(raw, start, offsets[base + NAME_END] - start, StandardCharsets.ISO_8859_1)
+                        .toLowerCase(Locale.ROOT);
+                var value = value(i);
+                map.merge(name, value, (v1, v2) -> v1.concat("; ").concat(v2));
+            }
+            fields = Collections.unmodifiableMap(map);
+        }
         return fields;
     }
 
@@ -75,15 +251,20 @@ public class HTTPHeader {
      * @throws HTTPException when the value of Content-Length is not a number
      */
     public int getContentLength() throws HTTPException {
-        String s = fields.get("content-length");
-        if (s == null) return -1;
-        else {
-            try {
-                return Integer.parseInt(s.trim());
-            } catch (NumberFormatException e) {
-                throw new HTTPException("Invalid Content-Length field value :\n" + s);
+        if (! contentLengthParsed) {
+            String s = getField("content-length");
+            if (s == null) {
+                contentLength = -1;
+            } else {
+                try {
+                    contentLength = Integer.parseInt(s);
+                } catch (NumberFormatException e) {
+                    throw new HTTPException("Invalid Content-Length field value :\n" + s);
+                }
             }
+            contentLengthParsed = true;
         }
+        return contentLength;
     }
 
     /**
@@ -91,11 +272,15 @@ public class HTTPHeader {
      *         null if there is no Content-Type field
      */
     public String getContentType() {
-        String s = fields.get("content-type");
-        if (s != null) {
-            return s.split(";")[0].trim();
-        } else
-            return null;
+        if (! contentTypeParsed) {
+            String s = getField("content-type");
+            if (s != null) {
+                var semicolon = s.indexOf(';');
+                contentType = (semicolon == -1 ? s : s.substring(0, semicolon)).trim();
+            }
+            contentTypeParsed = true;
+        }
+        return contentType;
     }
 
     /**
@@ -103,33 +288,40 @@ public class HTTPHeader {
      *         null if charset is unknown or unavailable on the JVM
      */
     public Charset getCharset() {
-        Charset cs = null;
-        String s = fields.get("content-type");
-        if (s == null) return cs;
+        if (! charsetParsed) {
+            charset = parseCharset(getField("content-type"));
+            charsetParsed = true;
+        }
+        return charset;
+    }
+
+    private static Charset parseCharset(String s) {
+        if (s == null) return null;
         for (String t : s.split(";")) {
             if (t.contains("charset=")) {
                 try {
-                    cs= Charset.forName(t.split("=")[1].trim());
+                    return Charset.forName(t.split("=")[1].trim());
                 } catch (Exception e) {
                    // If the Charset is unknown or unavailable we turn null
                 }
-                return cs;
+                return null;
             }
         }
-        return cs;
+        return null;
     }
 
     /**
      * @return true if the header correspond to a chunked response
      */
     public boolean isChunkedTransfer() {
-        return fields.containsKey("transfer-encoding") && fields.get("transfer-encoding").trim().equals("chunked");
+        var s = getField("transfer-encoding");
+        return s != null && s.equals("chunked");
     }
 
     public String toString() {
         return response + "\n"
                 + version + " " + code + "\n"
-                + fields.toString();
+                + getFields().toString();
     }
 
 
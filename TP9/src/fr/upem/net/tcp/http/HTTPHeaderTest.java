@@ -0,0 +1,60 @@
+package fr.upem.net.tcp.http;
+
+import org.junit.jupiter.api.Test;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+
+/**
+ *
+ * <p>
+ * Tests suit for the class HTTPHeader
+ */
+public class HTTPHeaderTest {
+
+    private static HTTPHeader create(String fields) throws HTTPException {
+        var raw = fields.getBytes(StandardCharsets.US_ASCII);
+        return HTTPHeader.create("HTTP/1.1 200 OK", raw, raw.length);
+    }
+
+    /**
+     * Test for the status line
+     */
+    @Test
+    public void testResponseLine() throws HTTPException {
+        var header = create("\r\n");
+        assertEquals("HTTP/1.1", header.getVersion());
+        assertEquals(200, header.getCode());
+        assertThrows(HTTPException.class, () -> HTTPHeader.create("HTTP/1.1", Map.of()));
+        assertThrows(HTTPException.class, () -> HTTPHeader.create("HTTP/0.9 200 OK", Map.of()));
+        assertThrows(HTTPException.class, () -> HTTPHeader.create("HTTP/1.1 abc OK", Map.of()));
+    }
+
+    /**
+     * Test for case-insensitive field access and cached parsed values
+     */
+    @Test
+    public void testFields() throws HTTPException {
+        var header = create("Content-Length:  42 \r\nCONTENT-TYPE: text/html; charset=UTF-8\r\n"
+                + "Transfer-Encoding: chunked\r\nSet-Cookie: a\r\nset-cookie: b\r\n\r\n");
+        assertEquals(42, header.getContentLength());
+        assertEquals("text/html", header.getContentType());
+        assertEquals(StandardCharsets.UTF_8, header.getCharset());
+        assertTrue(header.isChunkedTransfer());
+        assertEquals("a; b", header.getField("Set-Cookie"));
+        assertEquals("a; b", header.getFields().get("set-cookie"));
+        assertNull(header.getField("location"));
+    }
+
+    /**
+     * Test for ill-formed fields
+     */
+    @Test
+    public void testIllFormed() throws HTTPException {
+        assertThrows(HTTPException.class, () -> create("NoColon\r\n\r\n"));
+        assertThrows(HTTPException.class, () -> create("Content-Length: x\r\n\r\n").getContentLength());
+        assertEquals(-1, create("\r\n").getContentLength());
+    }
+}
@@ -0,0 +1,157 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Closed-loop HTTP load generator in the spirit of wrk.
+ * <p>
+ * Each connection is kept alive and driven by its own thread, which sends depth pipelined
+ * requests, reads their responses and starts again until the duration has elapsed.
+ * At the end, the number of requests per second and the latency percentiles are reported.
+ */
+public class HTTPLoadGenerator {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private final static Logger logger = Logger.getLogger(HTTPLoadGenerator.class.getName());
+
+    private final InetSocketAddress server;
+    private final String resource;
+    private final int connections;
+    private final int depth;
+    private final long durationMillis;
+
+    public HTTPLoadGenerator(InetSocketAddress server, String resource, int connections, int depth, long durationMillis) {
+        if (connections <= 0 || depth <= 0 || durationMillis <= 0) {
+            throw new IllegalArgumentException("connections, depth and duration must be positive");
+        }
+        this.server = server;
+        this.resource = resource;
+        this.connections = connections;
+        this.depth = depth;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Latencies in nanoseconds recorded by one connection
+     */
+    private static class Recorder {
+        private long[] latencies = new long[1024];
+        private int count;
+        private long bytes;
+        private long errors;
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    private void run(Recorder recorder, long deadline) {
+        var request = StandardCharsets.US_ASCII.encode("GET " + resource + " HTTP/1.1\r\n"
+                + "Host: " + server.getHostString() + ":" + server.getPort() + "\r\n"
+                + "\r\n");
+        var batch = ByteBuffer.allocate(request.remaining() * depth);
+        for (var i = 0; i < depth; i++) {
+            batch.put(request.duplicate());
+        }
+        while (System.currentTimeMillis() < deadline) {
+            try (var sc = SocketChannel.open(server)) {
+                var reader = new HTTPReader(sc, ByteBuffer.allocateDirect(BUFFER_SIZE));
+                while (System.currentTimeMillis() < deadline) {
+                    var start = System.nanoTime();
+                    batch.flip();
+                    while (batch.hasRemaining()) {
+                        sc.write(batch);
+                    }
+                    batch.clear().position(batch.capacity());
+                    for (var i = 0; i < depth; i++) {
+                        var header = reader.readHeader();
+                        long size;
+                        if (! HTTPClient.hasBody(header)) {
+                            size = 0;
+                        } else if (header.isChunkedTransfer()) {
+                            size = reader.skipChunks();
+                        } else {
+                            size = header.getContentLength();
+                            if (size == -1) {
+                                throw new HTTPException("Missing size information in response header");
+                            }
+                            reader.skipBytes(size);
+                        }
+                        recorder.record(System.nanoTime() - start);
+                        recorder.bytes += size;
+                        if (header.getCode() != 200) {
+                            recorder.errors++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                recorder.errors++;
+                logger.info("Connection failed : " + e.getMessage());
+            }
+        }
+    }
+
+    public void launch() throws InterruptedException {
+        var recorders = new ArrayList<Recorder>(connections);
+        var threads = new ArrayList<Thread>(connections);
+        var start = System.currentTimeMillis();
+        var deadline = start + durationMillis;
+        for (var i = 0; i < connections; i++) {
+            var recorder = new Recorder();
+            recorders.add(recorder);
+            threads.add(new Thread(() -> run(recorder, deadline)));
+        }
+        threads.forEach(Thread::start);
+        for (var thread : threads) {
+            thread.join();
+        }
+        var elapsed = System.currentTimeMillis() - start;
+        var count = recorders.stream().mapToInt(r -> r.count).sum();
+        var all = new long[count];
+        var offset = 0;
+        for (var recorder : recorders) {
+            System.arraycopy(recorder.latencies, 0, all, offset, recorder.count);
+            offset += recorder.count;
+        }
+        Arrays.sort(all);
+        System.out.println(String.format("%d requests in %d ms, %d connections, pipeline depth %d",
+                count, elapsed, connections, depth));
+        System.out.println(String.format("Requests/sec : %.1f", count * 1000.0 / elapsed));
+        System.out.println(String.format("Transfer/sec : %.2f MB",
+                recorders.stream().mapToLong(r -> r.bytes).sum() / 1000.0 / elapsed));
+        System.out.println("Errors : " + recorders.stream().mapToLong(r -> r.errors).sum());
+        if (count > 0) {
+            System.out.println(String.format("Latency p50 : %.3f ms  p90 : %.3f ms  p99 : %.3f ms  max : %.3f ms",
+                    percentile(all, 50), percentile(all, 90), percentile(all, 99), all[count - 1] / 1_000_000.0));
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        var index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1_000_000.0;
+    }
+
+    public static void usage() {
+        System.out.println("Usage : HTTPLoadGenerator <host> <port> <resource> <connections> <duration in s> [<pipeline depth>]");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length != 5 && args.length != 6) {
+            usage();
+            return;
+        }
+        var server = new InetSocketAddress(args[0], Integer.parseInt(args[1]));
+        var depth = args.length == 6 ? Integer.parseInt(args[5]) : 1;
+        new HTTPLoadGenerator(server, args[2], Integer.parseInt(args[3]), depth,
+                Long.parseLong(args[4]) * 1000).launch();
+    }
+}
@@ -3,11 +3,11 @@ package fr.upem.net.tcp.http;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.regex.PatternSyntaxException;
+import java.util.Arrays;
 
 
 public class HTTPReader {
@@ -66,23 +66,32 @@ public class HTTPReader {
      */
     public HTTPHeader readHeader() throws IOException {
         String firstLine = readLineCRLF();
-        var headerMap = new HashMap<String, String>();
         if (firstLine.isEmpty()) {
             throw new HTTPException("Bad HTTP header");
         }
-        var line = readLineCRLF();
-        while (! line.isEmpty()) {
-            try {
-                var headerLine = line.split(":", 2);
-                var key = headerLine[0];
-                var value = headerLine[1];
-                headerMap.compute(key, (k, v) -> (v == null) ? value : v.concat("; ").concat(value));
-            } catch (PatternSyntaxException e) {
-                throw new HTTPException("HTTP header is ill-formed");
+        var raw = new byte[256];
+        var length = 0;
+        buff.flip();
+        while (true) {      // copy bytes up to the empty line, they are only parsed by HTTPHeader
+            if (! buff.hasRemaining()) {
+                buff.clear();
+                if (sc.read(buff) == -1) {
+                    throw new HTTPException("Server closed connection before end of header");
+                }
+                buff.flip();
+                continue;
+            }
+            if (length == raw.length) {
+                raw = Arrays.copyOf(raw, raw.length * 2);
+            }
+            raw[length++] = buff.get();
+            if (length >= 2 && raw[length - 2] == '\r' && raw[length - 1] == '\n'
+                    && (length == 2 || (length >= 4 && raw[length - 4] == '\r' && raw[length - 3] == '\n'))) {
+                break;
             }
-            line = readLineCRLF();
         }
-        return HTTPHeader.create(firstLine, headerMap);
+        buff.compact();
+        return HTTPHeader.create(firstLine, raw, length);
     }
 
     /**
@@ -92,23 +101,32 @@ public class HTTPReader {
      */
     public ByteBuffer readBytes(int size) throws IOException {
         var readBuff = ByteBuffer.allocate(size * Byte.BYTES);
-        buff.flip();
-        while (readBuff.hasRemaining()) {       // while size bytes haven't been read
-            if (buff.hasRemaining()) {          // read bytes from buffer if possible
-                readBuff.put(buff.get());
-            }
-            else {                              // read from socketChannel if there's no more bytes
-                buff.clear();                   // to read in the buffer
-                if (sc.read(buff) == -1) {
-                    throw new IllegalArgumentException("Server closed connection before end of response");
-                }
-                buff.flip();
+        drainBuffer(readBuff);
+        while (readBuff.hasRemaining()) {       // the rest goes straight from the socket to readBuff
+            if (sc.read(readBuff) == -1) {
+                throw new HTTPException("Server closed connection before end of response");
             }
         }
-        buff.compact();
         return readBuff;
     }
 
+    /**
+     * Moves as many bytes as possible from buff into dst with a single bulk put.
+     * <p>
+     * The method assume that buff is in write mode and leave it in write-mode
+     * It never reads from the socket.
+     * @param dst : the buffer (in write-mode) receiving the bytes
+     * @return the number of bytes transferred
+     */
+    int drainBuffer(ByteBuffer dst) {
+        buff.flip();
+        var count = Math.min(buff.remaining(), dst.remaining());
+        dst.put(buff.slice().limit(count));
+        buff.position(buff.position() + count);
+        buff.compact();
+        return count;
+    }
+
     /**
      * @return a ByteBuffer in write-mode containing a content read in chunks mode
      * @throws IOException HTTPException if the connection is closed before the end of the chunks
@@ -116,7 +134,6 @@ public class HTTPReader {
      */
     public ByteBuffer readChunks() throws IOException {
         int chunkSize = Integer.parseInt(readLineCRLF(), 16);
-        System.out.println("chunksize : " + chunkSize);
         var chunks = ByteBuffer.allocate(1024);
         chunks.flip();
         while (chunkSize > 0) {
@@ -132,12 +149,121 @@ public class HTTPReader {
                 throw new HTTPException("Chunk is ill-formed");
             }
             chunkSize = Integer.parseInt(readLineCRLF(), 16);
-            System.out.println("chunksize : " + chunkSize);
         }
-        System.out.println(StandardCharsets.UTF_8.decode(chunks.flip()));
         return chunks;
     }
 
+    /**
+     * Writes size bytes of the response to fc, starting at its current position.
+     * <p>
+     * The bytes already present in buff are written first, the rest is transferred
+     * from the socket with FileChannel.transferFrom without going through buff.
+     * The method assume that buff is in write mode and leave it in write-mode
+     * @param fc : the file receiving the bytes, its position is advanced by size
+     * @param size : number of bytes to transfer
+     * @throws IOException HTTPException if the connection is closed before all bytes could be read
+     */
+    public void transferBytes(FileChannel fc, long size) throws IOException {
+        buff.flip();
+        var buffered = (int) Math.min(buff.remaining(), size);
+        var slice = buff.slice().limit(buffered);
+        while (slice.hasRemaining()) {
+            fc.write(slice);
+        }
+        buff.position(buff.position() + buffered);
+        buff.compact();
+        var remaining = size - buffered;
+        var position = fc.position();
+        while (remaining > 0) {
+            var transferred = fc.transferFrom(sc, position, remaining);
+            if (transferred == 0) {         // blocking socket : 0 means end of stream
+                throw new HTTPException("Server closed connection before end of response");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+        fc.position(position);
+    }
+
+    /**
+     * Writes a content sent in chunks mode to fc, starting at its current position.
+     * @param fc : the file receiving the content
+     * @return the number of bytes of content written
+     * @throws IOException HTTPException if the connection is closed before the end of the chunks
+     *                     if chunks are ill-formed
+     */
+    public long transferChunks(FileChannel fc) throws IOException {
+        var total = 0L;
+        var chunkSize = readChunkSize();
+        while (chunkSize > 0) {
+            transferBytes(fc, chunkSize);
+            total += chunkSize;
+            if (readLineCRLF().length() != 0) { // remove ending \r\n from last chunk
+                throw new HTTPException("Chunk is ill-formed");
+            }
+            chunkSize = readChunkSize();
+        }
+        while (! readLineCRLF().isEmpty()) {    // skip trailers
+        }
+        return total;
+    }
+
+    /**
+     * Reads and discards size bytes of the response, using only buff.
+     * @param size : number of bytes to skip
+     * @throws IOException HTTPException if the connection is closed before all bytes could be read
+     */
+    public void skipBytes(long size) throws IOException {
+        buff.flip();
+        var remaining = size;
+        while (true) {
+            var skipped = (int) Math.min(buff.remaining(), remaining);
+            buff.position(buff.position() + skipped);
+            remaining -= skipped;
+            if (remaining == 0) {
+                break;
+            }
+            buff.clear();
+            if (sc.read(buff) == -1) {
+                throw new HTTPException("Server closed connection before end of response");
+            }
+            buff.flip();
+        }
+        buff.compact();
+    }
+
+    /**
+     * Reads and discards a content sent in chunks mode.
+     * @return the number of bytes of content skipped
+     * @throws IOException HTTPException if the connection is closed before the end of the chunks
+     *                     if chunks are ill-formed
+     */
+    public long skipChunks() throws IOException {
+        var total = 0L;
+        var chunkSize = readChunkSize();
+        while (chunkSize > 0) {
+            skipBytes(chunkSize);
+            total += chunkSize;
+            if (readLineCRLF().length() != 0) { // remove ending \r\n from last chunk
+                throw new HTTPException("Chunk is ill-formed");
+            }
+            chunkSize = readChunkSize();
+        }
+        while (! readLineCRLF().isEmpty()) {    // skip trailers
+        }
+        return total;
+    }
+
+    private long readChunkSize() throws IOException {
+        var line = readLineCRLF();
+        var extension = line.indexOf(';');
+        try {
+            return Long.parseLong((extension == -1 ? line : line.substring(0, extension)).trim(), 16);
+        } catch (NumberFormatException e) {
+            throw new HTTPException("Invalid chunk size :\n" + line);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         Charset charsetASCII = StandardCharsets.US_ASCII;
         String request = "GET / HTTP/1.1\r\n"
@@ -139,6 +139,27 @@ public class HTTPReaderTest {
         }
     }
 
+    /**
+     * Test for readBytes with FakeServer when the content is much larger than the buffer
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testReadBytes3() throws IOException {
+        var content = "0123456789".repeat(100);
+        FakeHTTPServer server = new FakeHTTPServer(content + "TAIL", 500);
+        try {
+            server.serve();
+            SocketChannel sc = SocketChannel.open();
+            sc.connect(new InetSocketAddress("localhost", server.getPort()));
+            var buff = ByteBuffer.allocate(12);
+            HTTPReader reader = new HTTPReader(sc, buff);
+            assertEquals(content, StandardCharsets.US_ASCII.decode(reader.readBytes(content.length()).flip()).toString());
+            assertEquals("TAIL", StandardCharsets.US_ASCII.decode(reader.readBytes(4).flip()).toString());
+        } finally {
+            server.shutdown();
+        }
+    }
+
     /**
      * Test for readBytes with FakeServer
      * @throws java.io.IOException
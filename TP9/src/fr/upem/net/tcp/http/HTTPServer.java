@@ -0,0 +1,386 @@
+package fr.upem.net.tcp.http;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Nonblocking HTTP/1.1 server serving the files of a directory.
+ * <p>
+ * Connections are kept alive unless the client asks otherwise, and pipelined requests
+ * are answered in order. File contents are sent with FileChannel.transferTo.
+ * Only GET and HEAD are supported and request bodies are not accepted.
+ */
+public class HTTPServer {
+
+    static private class Response {
+        private final ByteBuffer header;
+        private final FileChannel file;     // null when there is no body to send
+        private long position;
+        private final boolean closeAfter;
+
+        private Response(ByteBuffer header, FileChannel file, boolean closeAfter) {
+            this.header = header;
+            this.file = file;
+            this.closeAfter = closeAfter;
+        }
+
+        private boolean isDone() throws IOException {
+            return ! header.hasRemaining() && (file == null || position == file.size());
+        }
+
+        private void close() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    static private class Context {
+
+        private final SelectionKey key;
+        private final SocketChannel sc;
+        private final ByteBuffer bbin = ByteBuffer.allocate(BUFFER_SIZE);
+        private final Queue<Response> queue = new ArrayDeque<>();
+        private final HTTPServer server;
+        private boolean closed = false;         // no more requests will be read
+        private boolean closeAfterQueue = false;
+
+        private Context(HTTPServer server, SelectionKey key) {
+            this.key = key;
+            this.sc = (SocketChannel) key.channel();
+            this.server = server;
+        }
+
+        /**
+         * Parses the complete requests present in bbin and queues their responses.
+         *
+         * The convention is that bbin is in write-mode before the call
+         * to processIn and after the call
+         */
+        private void processIn() {
+            bbin.flip();
+            while (! closeAfterQueue && queue.size() < MAX_PIPELINED) {
+                var end = indexOfEmptyLine(bbin);
+                if (end == -1) {
+                    if (bbin.remaining() == bbin.capacity()) {     // full buffer without a complete header
+                        queueResponse(server.error(431, "Request Header Fields Too Large", true));
+                    }
+                    break;
+                }
+                var bytes = new byte[end - bbin.position()];
+                bbin.get(bytes);
+                queueResponse(server.respond(bytes));
+            }
+            bbin.compact();
+        }
+
+        private void queueResponse(Response response) {
+            queue.add(response);
+            if (response.closeAfter) {
+                closeAfterQueue = true;
+            }
+        }
+
+        /**
+         * Sends as much as possible of the queued responses.
+         */
+        private void processOut() throws IOException {
+            while (! queue.isEmpty()) {
+                var response = queue.peek();
+                if (response.header.hasRemaining()) {
+                    sc.write(response.header);
+                    if (response.header.hasRemaining()) {
+                        return;
+                    }
+                }
+                if (response.file != null) {
+                    var size = response.file.size();
+                    while (response.position < size) {
+                        var sent = response.file.transferTo(response.position, size - response.position, sc);
+                        if (sent == 0) {
+                            return;
+                        }
+                        response.position += sent;
+                    }
+                }
+                if (response.isDone()) {
+                    queue.poll().close();
+                }
+            }
+        }
+
+        /**
+         * Update the interestOps of the key looking
+         * only at values of the boolean closed, of the queue and of bbin.
+         */
+        private void updateInterestOps() {
+            var opt = 0;
+            if (! closed && ! closeAfterQueue && bbin.hasRemaining() && queue.size() < MAX_PIPELINED) {
+                opt |= SelectionKey.OP_READ;
+            }
+            if (! queue.isEmpty()) {
+                opt |= SelectionKey.OP_WRITE;
+            }
+            if (opt == 0) {
+                silentlyClose();
+            } else {
+                key.interestOps(opt);
+            }
+        }
+
+        private void doRead() throws IOException {
+            if (sc.read(bbin) == -1) {
+                closed = true;
+            }
+            processIn();
+            processOut();
+            updateInterestOps();
+        }
+
+        private void doWrite() throws IOException {
+            processOut();
+            processIn();        // requests left in bbin once the pipeline drained
+            updateInterestOps();
+        }
+
+        private void silentlyClose() {
+            queue.forEach(Response::close);
+            queue.clear();
+            try {
+                sc.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    static private final int BUFFER_SIZE = 8 * 1024;
+    static private final int MAX_PIPELINED = 16;
+    static private final Charset ASCII = StandardCharsets.US_ASCII;
+    static private final Map<String, String> CONTENT_TYPES = Map.of(
+            "html", "text/html; charset=utf-8",
+            "htm", "text/html; charset=utf-8",
+            "txt", "text/plain; charset=utf-8",
+            "css", "text/css",
+            "js", "application/javascript",
+            "json", "application/json",
+            "png", "image/png",
+            "jpg", "image/jpeg",
+            "gif", "image/gif");
+    static private Logger logger = Logger.getLogger(HTTPServer.class.getName());
+
+    private final ServerSocketChannel serverSocketChannel;
+    private final Selector selector;
+    private final Path root;
+    private String date;
+    private long dateSecond = -1;
+
+    public HTTPServer(int port, Path root) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.bind(new InetSocketAddress(port));
+        selector = Selector.open();
+    }
+
+    public int getPort() throws IOException {
+        return ((InetSocketAddress) serverSocketChannel.getLocalAddress()).getPort();
+    }
+
+    public void launch() throws IOException {
+        serverSocketChannel.configureBlocking(false);
+        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        logger.info("Serving " + root + " on port " + getPort());
+        while (!Thread.interrupted()) {
+            try {
+                selector.select(this::treatKey);
+            } catch (UncheckedIOException tunneled) {
+                throw tunneled.getCause();
+            }
+        }
+    }
+
+    private void treatKey(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isAcceptable()) {
+                doAccept(key);
+            }
+        } catch (IOException ioe) {
+            // lambda call in select requires to tunnel IOException
+            throw new UncheckedIOException(ioe);
+        }
+        try {
+            if (key.isValid() && key.isWritable()) {
+                ((Context) key.attachment()).doWrite();
+            }
+            if (key.isValid() && key.isReadable()) {
+                ((Context) key.attachment()).doRead();
+            }
+        } catch (IOException e) {
+            logger.log(Level.INFO, "Connection closed with client due to IOException", e);
+            ((Context) key.attachment()).silentlyClose();
+        }
+    }
+
+    private void doAccept(SelectionKey key) throws IOException {
+        var sc = serverSocketChannel.accept();
+        if (sc == null) {
+            return;
+        }
+        sc.configureBlocking(false);
+        sc.setOption(StandardSocketOptions.TCP_NODELAY, true);     // header and body are written separately
+        var clientKey = sc.register(selector, SelectionKey.OP_READ);
+        clientKey.attach(new Context(this, clientKey));
+    }
+
+    /**
+     * @return the position just after the CRLFCRLF ending the header in bb (in read-mode), -1 if absent
+     */
+    private static int indexOfEmptyLine(ByteBuffer bb) {
+        for (var i = bb.position(); i + 3 < bb.limit(); i++) {
+            if (bb.get(i) == '\r' && bb.get(i + 1) == '\n' && bb.get(i + 2) == '\r' && bb.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param bytes : the whole header of a request, from the request line to the empty line
+     */
+    private Response respond(byte[] bytes) {
+        var lineEnd = 0;
+        while (bytes[lineEnd] != '\r' || bytes[lineEnd + 1] != '\n') {
+            lineEnd++;
+        }
+        HTTPHeader request;
+        try {
+            var fields = new byte[bytes.length - lineEnd - 2];
+            System.arraycopy(bytes, lineEnd + 2, fields, 0, fields.length);
+            request = HTTPHeader.createRequest(new String(bytes, 0, lineEnd, ASCII), fields, fields.length);
+        } catch (HTTPException e) {
+            return error(400, "Bad Request", true);
+        }
+        var connection = request.getField("connection");
+        var close = request.getVersion().equals("HTTP/1.0")
+                ? connection == null || ! connection.equalsIgnoreCase("keep-alive")
+                : connection != null && connection.equalsIgnoreCase("close");
+        try {
+            if (request.getContentLength() > 0 || request.isChunkedTransfer()) {
+                return error(413, "Payload Too Large", true);
+            }
+        } catch (HTTPException e) {
+            return error(400, "Bad Request", true);
+        }
+        var method = request.getMethod();
+        if (! method.equals("GET") && ! method.equals("HEAD")) {
+            return error(501, "Not Implemented", close);
+        }
+        var resource = request.getResource();
+        var query = resource.indexOf('?');
+        if (query != -1) {
+            resource = resource.substring(0, query);
+        }
+        if (! resource.startsWith("/")) {
+            return error(400, "Bad Request", close);
+        }
+        var path = root.resolve(resource.substring(1)).normalize();
+        if (! path.startsWith(root)) {
+            return error(403, "Forbidden", close);
+        }
+        if (Files.isDirectory(path)) {
+            path = path.resolve("index.html");
+        }
+        FileChannel file;
+        try {
+            file = FileChannel.open(path);
+        } catch (NoSuchFileException e) {
+            return error(404, "Not Found", close);
+        } catch (IOException e) {
+            return error(403, "Forbidden", close);
+        }
+        try {
+            var header = header(200, "OK", contentType(path), file.size(), close);
+            if (method.equals("HEAD")) {
+                file.close();
+                file = null;
+            }
+            return new Response(header, file, close);
+        } catch (IOException e) {
+            try {
+                file.close();
+            } catch (IOException ignored) {
+                // ignore
+            }
+            return error(500, "Internal Server Error", true);
+        }
+    }
+
+    private Response error(int code, String reason, boolean close) {
+        var body = ASCII.encode(code + " " + reason + "\n");
+        var header = header(code, reason, "text/plain", body.remaining(), close);
+        var response = ByteBuffer.allocate(header.remaining() + body.remaining());
+        response.put(header).put(body).flip();
+        return new Response(response, null, close);
+    }
+
+    private ByteBuffer header(int code, String reason, String contentType, long size, boolean close) {
+        return ASCII.encode("HTTP/1.1 " + code + " " + reason + "\r\n"
+                + "Date: " + date() + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + size + "\r\n"
+                + (close ? "Connection: close\r\n" : "")
+                + "\r\n");
+    }
+
+    /**
+     * @return the current date formatted for the Date field, formatted at most once per second
+     */
+    private String date() {
+        var second = System.currentTimeMillis() / 1000;
+        if (second != dateSecond) {
+            date = DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+            dateSecond = second;
+        }
+        return date;
+    }
+
+    private static String contentType(Path path) {
+        var name = path.getFileName().toString();
+        var dot = name.lastIndexOf('.');
+        var type = dot == -1 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase());
+        return type == null ? "application/octet-stream" : type;
+    }
+
+    public static void main(String[] args) throws NumberFormatException, IOException {
+        if (args.length != 2) {
+            usage();
+            return;
+        }
+        new HTTPServer(Integer.parseInt(args[0]), Path.of(args[1])).launch();
+    }
+
+    private static void usage() {
+        System.out.println("Usage : HTTPServer port root");
+    }
+}